@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Public entry points into the default-package application classes. JMH only accepts
+// benchmarks in a named package, and a named package cannot import the default one, so the
+// benchmarks in chatapp.bench look these methods up once as MethodHandles.
+public final class BenchSupport {
+    private BenchSupport() {}
+
+    // ---- message formatting (what every broadcast pays once) ----
+
+    public static ByteBuffer formatChat(int senderId, String sender, String text, boolean binary) {
+        return WireMessage.chat(senderId, sender, text).frame(binary);
+    }
+
+    // ---- roster snapshots ----
+
+    public static Object members(int count) {
+        List<ClientConnection> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ClientConnection member = new ClientConnection() {
+                void close() {}
+            };
+            member.name = "user" + i;
+            members.add(member);
+        }
+        return members;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static ByteBuffer formatUserList(long version, Object members, boolean binary) {
+        return WireMessage.userList(version, (Collection<ClientConnection>) members).frame(binary);
+    }
+
+    // ---- compression (see Compression) ----
+
+    private static final String[] WORDS = ("the a meeting deploy build failed again tomorrow review "
+            + "please server room latency release notes fix merged branch test green red ok thanks "
+            + "can you look at this when free lunch").split(" ");
+
+    // Plain binary frames of a typical payload: "chat" one short line, "paste" one line with a
+    // pasted stack trace, "replay" the 50 messages a client gets on entering a room, "roster"
+    // the snapshot of a 1000-member room
+    public static ByteBuffer compressionPayload(String kind) {
+        java.util.Random random = new java.util.Random(42);
+        List<WireMessage> messages = new ArrayList<>();
+        switch (kind) {
+            case "chat":
+                messages.add(WireMessage.chat(7, "alice", sentence(random, 10)));
+                break;
+            case "paste": {
+                StringBuilder trace = new StringBuilder("java.lang.IllegalStateException: " + sentence(random, 6));
+                for (int i = 0; i < 40; i++) {
+                    trace.append("\n\tat chatapp.Module").append(random.nextInt(20)).append(".handle")
+                            .append("(Module.java:").append(10 + random.nextInt(400)).append(')');
+                }
+                messages.add(WireMessage.chat(7, "alice", trace.toString()));
+                break;
+            }
+            case "replay":
+                for (int i = 0; i < 50; i++) {
+                    messages.add(WireMessage.chat(i % 8, "user" + (i % 8), sentence(random, 5 + random.nextInt(15))));
+                }
+                break;
+            case "roster":
+                return formatUserList(1, members(1000), true);
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+        int length = 0;
+        for (WireMessage msg : messages) length += msg.frame(true).remaining();
+        ByteBuffer frames = ByteBuffer.allocate(length);
+        for (WireMessage msg : messages) frames.put(msg.frame(true).duplicate());
+        return frames.flip().asReadOnlyBuffer();
+    }
+
+    private static String sentence(java.util.Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    public static ByteBuffer deflate(ByteBuffer frames, int level) {
+        return Compression.deflate(frames, level);
+    }
+
+    public static Object inflater() {
+        return new Compression.Inflating();
+    }
+
+    // inflates a DEFLATED frame's payload, returning the plain length
+    public static int inflate(Object inflating, byte[] payload, int length) throws IOException {
+        return ((Compression.Inflating) inflating).inflate(payload, length);
+    }
+
+    // ---- client-side parsing of legacy lines ----
+
+    private static final Counting COUNTING = new Counting();
+
+    // returns a value derived from what the listener saw, so the work cannot be eliminated
+    public static int parseLine(String line) {
+        COUNTING.seen = 0;
+        ChatConnection.dispatch(line, COUNTING);
+        return COUNTING.seen;
+    }
+
+    private static final class Counting implements ChatConnection.Listener {
+        int seen;
+
+        public void onChat(String sender, String text) { seen += sender.length() + text.length(); }
+        public void onSystem(String text) { seen += text.length(); }
+        public void onRoom(String room) { seen += room.length(); }
+        public void onUserList(long version, List<String> users) { seen += users.size(); }
+        public void onUserJoined(long version, String user) { seen += user.length(); }
+        public void onUserLeft(long version, String user) { seen += user.length(); }
+    }
+
+    // ---- end-to-end fan-out over loopback ----
+
+    private static String startedMode;
+
+    // Starts the in-process server once per JVM and connects the clients; JMH forks a fresh
+    // JVM per parameter combination, which is what lets the mode differ between runs
+    public static Object startFanOut(String mode, int port, int clients) throws IOException {
+        if (startedMode == null) {
+            System.setProperty("chat.server.mode", mode);
+            System.setProperty("chat.port", Integer.toString(port));
+            // one client sends every round back to back; rate limits would throttle it
+            System.setProperty("chat.rate.messages", "0");
+            System.setProperty("chat.room.rate.messages", "0");
+            // receivers never send, and a ping would count as a received line
+            System.setProperty("chat.heartbeat.interval.ms", "0");
+            // keep the server's console output out of the benchmark's
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            ChatServer.startServer().orTimeout(5, TimeUnit.SECONDS).join();
+            startedMode = mode;
+        } else if (!startedMode.equals(mode)) {
+            throw new IllegalStateException("Server already running in " + startedMode + " mode; run with forks");
+        }
+        return new FanOut(port, clients);
+    }
+
+    // One chat line from the first client, returning once every client (sender included) has it
+    public static void fanOut(Object fanOut) throws IOException {
+        ((FanOut) fanOut).roundTrip();
+    }
+
+    public static void stopFanOut(Object fanOut) {
+        ((FanOut) fanOut).close();
+    }
+
+    // Text-protocol clients on one selector; each round every client must receive one line
+    private static final class FanOut {
+        private static final byte[] MESSAGE = "bench\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final Selector selector;
+        private final SocketChannel[] clients;
+        private final int[] lines;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final ByteBuffer message = ByteBuffer.wrap(MESSAGE);
+        private int round;
+
+        FanOut(int port, int count) throws IOException {
+            selector = Selector.open();
+            clients = new SocketChannel[count];
+            lines = new int[count];
+            // names are unique per connection so repeated trials in one JVM never collide
+            String prefix = "b" + System.nanoTime() + "-";
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                channel.write(ByteBuffer.wrap((prefix + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, i);
+                clients[i] = channel;
+                if (i % 100 == 0) drain(0);
+            }
+            // join notices, roster deltas and history replay are not part of what is measured
+            while (drain(500) > 0) { }
+            java.util.Arrays.fill(lines, 0);
+        }
+
+        private int drain(long timeoutMillis) throws IOException {
+            int bytes = 0;
+            while (selector.select(timeoutMillis) > 0) {
+                for (SelectionKey key : selector.selectedKeys()) {
+                    bytes += read(key);
+                }
+                selector.selectedKeys().clear();
+                if (timeoutMillis == 0) break;
+            }
+            return bytes;
+        }
+
+        void roundTrip() throws IOException {
+            round++;
+            message.clear();
+            while (message.hasRemaining()) clients[0].write(message);
+            int pending = clients.length;
+            while (pending > 0) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    int i = (Integer) key.attachment();
+                    boolean done = lines[i] >= round;
+                    read(key);
+                    if (!done && lines[i] >= round) pending--;
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        // counts complete lines; a line split across reads is counted once its newline arrives
+        private int read(SelectionKey key) throws IOException {
+            int i = (Integer) key.attachment();
+            SocketChannel channel = (SocketChannel) key.channel();
+            int total = 0;
+            int n;
+            while ((n = channel.read(readBuffer.clear())) > 0) {
+                total += n;
+                for (int p = 0; p < n; p++) {
+                    if (readBuffer.get(p) == '\n') lines[i]++;
+                }
+            }
+            if (n < 0) throw new IOException("Server closed client " + i);
+            return total;
+        }
+
+        void close() {
+            for (SocketChannel client : clients) {
+                try { client.close(); } catch (IOException ignored) {}
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+}
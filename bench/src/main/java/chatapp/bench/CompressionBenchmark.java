@@ -0,0 +1,53 @@
+package chatapp.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CPU against bytes for the server's per-message compression:
+// - deflate: the server's cost, paid once per broadcast or per replay batch, not per recipient
+// - inflate: what every receiving client pays to read it back
+// The bytes side of the trade is printed by the setup as "payload: plain -> compressed".
+// "chat" stays under chat.compress.min.bytes and is passed through as it is.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({ "chat", "paste", "replay", "roster" })
+    public String payload;
+
+    @Param({ "1", "6", "9" })
+    public int level;
+
+    private ByteBuffer frames;
+    private byte[] deflatedPayload;
+    private int deflatedLength;
+    private Object inflater;
+
+    @Setup
+    public void setUp() throws Throwable {
+        frames = (ByteBuffer) Handles.COMPRESSION_PAYLOAD.invokeExact(payload);
+        ByteBuffer deflated = (ByteBuffer) Handles.DEFLATE.invokeExact(frames, level);
+        System.out.println(payload + " at level " + level + ": " + frames.remaining() + " -> "
+                + deflated.remaining() + " bytes");
+        // payload of the DEFLATED frame (header: type, length, sender id)
+        deflatedLength = deflated.remaining() - 9;
+        deflatedPayload = new byte[deflatedLength];
+        deflated.get(9, deflatedPayload);
+        inflater = (Object) Handles.INFLATER.invokeExact();
+    }
+
+    @Benchmark
+    public ByteBuffer deflate() throws Throwable {
+        return (ByteBuffer) Handles.DEFLATE.invokeExact(frames, level);
+    }
+
+    @Benchmark
+    public int inflate() throws Throwable {
+        if (deflatedLength + 9 == frames.remaining()) return 0; // sent uncompressed
+        return (int) Handles.INFLATE.invokeExact(inflater, deflatedPayload, deflatedLength);
+    }
+}
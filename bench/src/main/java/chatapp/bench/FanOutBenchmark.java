@@ -0,0 +1,40 @@
+package chatapp.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// End to end over loopback: one client sends a chat line and the operation ends when all
+// clients in the room, the sender included, have read it. The server runs in the benchmark
+// JVM, so every parameter combination needs its own fork.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    private static final int PORT = 12398;
+
+    @Param({ "10", "100", "1000" })
+    public int recipients;
+
+    @Param({ "thread", "nio" })
+    public String mode;
+
+    private Object fanOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        fanOut = (Object) Handles.START_FAN_OUT.invokeExact(mode, PORT, recipients);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Throwable {
+        Handles.STOP_FAN_OUT.invokeExact(fanOut);
+    }
+
+    @Benchmark
+    public void broadcast() throws Throwable {
+        Handles.FAN_OUT.invokeExact(fanOut);
+    }
+}
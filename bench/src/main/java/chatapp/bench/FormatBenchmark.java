@@ -0,0 +1,50 @@
+package chatapp.bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// CPU cost of building what goes on the wire, per protocol:
+// - chat: one broadcast's frame, encoded once and shared by every recipient
+// - userList: a full roster snapshot, sent on room entry and on "/users"
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+    @Param({ "text", "binary" })
+    public String protocol;
+
+    private boolean binary;
+
+    @State(Scope.Thread)
+    public static class Roster {
+        @Param({ "10", "100", "1000" })
+        public int members;
+
+        Object connections;
+        long version;
+
+        @Setup
+        public void setUp() throws Throwable {
+            connections = (Object) Handles.MEMBERS.invokeExact(members);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        binary = protocol.equals("binary");
+    }
+
+    @Benchmark
+    public ByteBuffer chat() throws Throwable {
+        return (ByteBuffer) Handles.FORMAT_CHAT.invokeExact(42, "alice", "hello everyone, how is it going?", binary);
+    }
+
+    @Benchmark
+    public ByteBuffer userList(Roster roster) throws Throwable {
+        return (ByteBuffer) Handles.FORMAT_USER_LIST.invokeExact(++roster.version, roster.connections, binary);
+    }
+}
@@ -0,0 +1,36 @@
+package chatapp.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+// BenchSupport's methods as constant MethodHandles; invokeExact through a static final
+// handle is inlined by the JIT, so the indirection does not show up in the numbers.
+final class Handles {
+    static final MethodHandle FORMAT_CHAT =
+            find("formatChat", ByteBuffer.class, int.class, String.class, String.class, boolean.class);
+    static final MethodHandle MEMBERS = find("members", Object.class, int.class);
+    static final MethodHandle FORMAT_USER_LIST =
+            find("formatUserList", ByteBuffer.class, long.class, Object.class, boolean.class);
+    static final MethodHandle PARSE_LINE = find("parseLine", int.class, String.class);
+    static final MethodHandle COMPRESSION_PAYLOAD = find("compressionPayload", ByteBuffer.class, String.class);
+    static final MethodHandle DEFLATE = find("deflate", ByteBuffer.class, ByteBuffer.class, int.class);
+    static final MethodHandle INFLATER = find("inflater", Object.class);
+    static final MethodHandle INFLATE = find("inflate", int.class, Object.class, byte[].class, int.class);
+    static final MethodHandle START_FAN_OUT =
+            find("startFanOut", Object.class, String.class, int.class, int.class);
+    static final MethodHandle FAN_OUT = find("fanOut", void.class, Object.class);
+    static final MethodHandle STOP_FAN_OUT = find("stopFanOut", void.class, Object.class);
+
+    private Handles() {}
+
+    private static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> support = Class.forName("BenchSupport");
+            return MethodHandles.publicLookup().findStatic(support, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package chatapp.bench;
+
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Client-side decoding of legacy protocol lines into Listener callbacks, which every
+// line the GUI shows goes through
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+    private String chatLine;
+    private String systemLine;
+    private String userListLine;
+
+    @Setup
+    public void setUp() {
+        chatLine = "**alice**: hello everyone, how is it going?";
+        systemLine = "[System] bob joined the chat.";
+        StringJoiner users = new StringJoiner(",", "/users:7:", "");
+        for (int i = 0; i < 100; i++) users.add("user" + i);
+        userListLine = users.toString();
+    }
+
+    @Benchmark
+    public int chat() throws Throwable {
+        return (int) Handles.PARSE_LINE.invokeExact(chatLine);
+    }
+
+    @Benchmark
+    public int system() throws Throwable {
+        return (int) Handles.PARSE_LINE.invokeExact(systemLine);
+    }
+
+    @Benchmark
+    public int userList100() throws Throwable {
+        return (int) Handles.PARSE_LINE.invokeExact(userListLine);
+    }
+}
@@ -1,16 +1,19 @@
+import java.util.concurrent.CompletionException;
 import javax.swing.*;
 
 public class App {
     public static void main(String[] args) {
-        // Start the server in a separate thread
-        ChatServer.startServer();
-
-        // Wait a second for server to start
-        try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
+        // Start the server and wait until it accepts connections
+        try {
+            ChatServer.startServer().join();
+        } catch (CompletionException e) {
+            System.err.println("Server did not start: " + e.getCause().getMessage());
+            System.exit(1);
+        }
 
         // Launch GUI client
         SwingUtilities.invokeLater(() -> {
-            ChatClientGUI gui = new ChatClientGUI("localhost", 12345);
+            ChatClientGUI gui = new ChatClientGUI("localhost", ChatServer.PORT);
             gui.setVisible(true);
         });
     }
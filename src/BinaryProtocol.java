@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed binary framing, negotiated per connection next to the legacy line protocol.
+// A client opens with the two bytes MAGIC, VERSION and the server answers with the same two
+// bytes; after that both sides only exchange frames:
+//   type (1 byte) | payload length (4) | sender id (4) | payload
+// Text in payloads is UTF-8 and may contain newlines, "**" or anything else.
+final class BinaryProtocol {
+    static final int MAGIC = 0x00; // never the first byte of a legacy handshake (a typed name)
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 9;
+    static final int MAX_PAYLOAD = 1 << 20;
+
+    // client -> server
+    static final byte HELLO = 1;        // payload: name
+    static final byte LINE = 2;         // payload: chat text or a command, like one legacy line
+    static final byte PONG = 3;         // empty; answers PING
+    static final byte RESUME = 4;       // before HELLO when reconnecting; payload: epoch (8) | seq (8) | room
+    static final byte DEFLATE = 5;      // before HELLO: the client reads DEFLATED frames; empty
+    // server -> client
+    static final byte CHAT = 16;        // sender id: author; payload: name length (2) | name | text
+    static final byte SYSTEM = 17;      // payload: text
+    static final byte ROOM = 18;        // payload: room name
+    static final byte USER_LIST = 19;   // payload: version (8) | count (4) | count x (id (4) | name length (2) | name)
+    static final byte USER_JOINED = 20; // sender id: user; payload: version (8) | name
+    static final byte USER_LEFT = 21;   // sender id: user; payload: version (8) | name
+    static final byte PING = 22;        // empty; the client answers with PONG
+    static final byte SEQ = 23;         // follows a room message; payload: room epoch (8) | seq (8)
+    static final byte DEFLATED = 24;    // payload: raw deflate of one or more whole frames (see Compression)
+    static final byte BYE = 25;         // last frame before a refusal or kick; payload: reason, as in ServerMetrics
+
+    private BinaryProtocol() {}
+
+    static ByteBuffer handshake() {
+        return ByteBuffer.wrap(new byte[] { MAGIC, VERSION }).asReadOnlyBuffer();
+    }
+
+    // header for a payload of the given size; the caller puts the payload and flips
+    static ByteBuffer allocate(byte type, int senderId, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        return frame.put(type).putInt(payloadLength).putInt(senderId);
+    }
+
+    static ByteBuffer frame(byte type, int senderId, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return allocate(type, senderId, payload.length).put(payload).flip().asReadOnlyBuffer();
+    }
+
+    // a room message's frame followed by its SEQ frame, as one buffer
+    static ByteBuffer sequenced(ByteBuffer frame, long epoch, long seq) {
+        ByteBuffer both = ByteBuffer.allocate(frame.remaining() + HEADER_SIZE + 16);
+        both.put(frame.duplicate());
+        return both.put(SEQ).putInt(16).putInt(0).putLong(epoch).putLong(seq).flip().asReadOnlyBuffer();
+    }
+
+    // Decoding state for one stream, reused for every frame read from it
+    static final class Frame {
+        byte type;
+        int senderId;
+        int length;
+        byte[] payload = new byte[256];
+
+        String text(int offset) {
+            return new String(payload, offset, length - offset, StandardCharsets.UTF_8);
+        }
+
+        String text(int offset, int count) {
+            return new String(payload, offset, count, StandardCharsets.UTF_8);
+        }
+
+        int getShort(int offset) {
+            return ((payload[offset] & 0xff) << 8) | (payload[offset + 1] & 0xff);
+        }
+
+        int getInt(int offset) {
+            return BinaryProtocol.getInt(payload, offset);
+        }
+
+        long getLong(int offset) {
+            return ((long) getInt(offset) << 32) | (getInt(offset + 4) & 0xffffffffL);
+        }
+
+        private void ensureCapacity(int n) {
+            if (payload.length < n) payload = new byte[Math.max(n, payload.length * 2)];
+        }
+    }
+
+    // Parse one frame from buf[offset, end); returns the bytes consumed, or 0 if the frame is incomplete
+    static int parse(byte[] buf, int offset, int end, Frame frame) throws IOException {
+        return parse(buf, offset, end, frame, MAX_PAYLOAD);
+    }
+
+    // Same, refusing a payload over maxPayload as soon as its header is in, before it is buffered
+    static int parse(byte[] buf, int offset, int end, Frame frame, int maxPayload) throws IOException {
+        if (end - offset < HEADER_SIZE) return 0;
+        int length = getInt(buf, offset + 1);
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Frame too large: " + length);
+        if (length > maxPayload) throw new LineReader.TooLongException(maxPayload);
+        if (end - offset < HEADER_SIZE + length) return 0;
+        frame.type = buf[offset];
+        frame.length = length;
+        frame.senderId = getInt(buf, offset + 5);
+        frame.ensureCapacity(length);
+        System.arraycopy(buf, offset + HEADER_SIZE, frame.payload, 0, length);
+        return HEADER_SIZE + length;
+    }
+
+    static int getInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    // Blocking read of the next frame; false on a clean end of stream
+    static boolean read(DataInputStream in, Frame frame) throws IOException {
+        return read(in, frame, MAX_PAYLOAD);
+    }
+
+    // Same, refusing a payload over maxPayload before reading it
+    static boolean read(DataInputStream in, Frame frame, int maxPayload) throws IOException {
+        int type = in.read();
+        if (type < 0) return false;
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Frame too large: " + length);
+        if (length > maxPayload) throw new LineReader.TooLongException(maxPayload);
+        frame.type = (byte) type;
+        frame.length = length;
+        frame.senderId = in.readInt();
+        frame.ensureCapacity(length);
+        in.readFully(frame.payload, 0, length);
+        return true;
+    }
+
+    static void write(DataOutputStream out, byte type, int senderId, String text) throws IOException {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.writeInt(senderId);
+        out.write(payload);
+        out.flush();
+    }
+}
@@ -1,38 +1,42 @@
 import java.io.*;
-import java.net.*;
 import java.util.*;
 
 public class ChatClient {
     public static void main(String[] args) {
         String host = "localhost";
-        int port = 12345;
+        int port = ChatServer.PORT; // -Dchat.port, as for the server
 
-        try (Socket socket = new Socket(host, port);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             Scanner sc = new Scanner(System.in)) {
+        try (Scanner sc = new Scanner(System.in)) {
+            System.out.print("Name: ");
+            String name = sc.nextLine();
 
-            System.out.println("Connected to server " + host + ":" + port);
+            try (ChatConnection connection = ChatConnection.open(host, port, name)) {
+                System.out.println("Connected to server " + host + ":" + port
+                        + (connection.isBinary() ? " (binary protocol)" : ""));
 
-            new Thread(() -> {
-                String msg;
-                try {
-                    while ((msg = in.readLine()) != null) {
-                        System.out.println(msg);
+                new Thread(() -> {
+                    try {
+                        connection.listen(new ChatConnection.Listener() {
+                            public void onChat(String sender, String text) { System.out.println(sender + ": " + text); }
+                            public void onSystem(String text) { System.out.println("[System] " + text); }
+                            public void onOther(String line) { System.out.println(line); }
+                            public void onRoom(String room) { System.out.println("[Room] #" + room); }
+                        });
+                    } catch (IOException e) {
+                        // fall through to the message below
                     }
-                } catch (IOException e) {
                     System.out.println("Disconnected from server.");
-                }
-            }).start();
+                }).start();
 
-            while (true) {
-                String msg = sc.nextLine();
-                out.println(msg);
-                if (msg.equalsIgnoreCase("/exit")) break;
+                while (true) {
+                    String msg = sc.nextLine();
+                    connection.sendLine(msg);
+                    if (msg.equalsIgnoreCase("/exit")) break;
+                }
             }
 
         } catch (IOException e) {
             System.out.println("Could not connect: " + e.getMessage());
         }
     }
-}
+}
\ No newline at end of file
@@ -1,7 +1,10 @@
 import java.awt.*;
 import java.io.*;
-import java.net.*;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.text.*;
@@ -10,15 +13,21 @@ public class ChatClientGUI extends JFrame {
     private JTextPane chatArea;
     private JTextField inputField;
     private JButton sendButton, exitButton;
-    private PrintWriter out;
-    private BufferedReader in;
-    private Socket socket;
+    // replaced by the listener thread when it reconnects
+    private volatile ChatConnection connection;
 
     // UI Components for Connection and Users
     private JTextArea onlineUsersArea; 
     private JTextField usernameField; 
     private JButton connectButton;
     private AtomicBoolean isConnected = new AtomicBoolean(false);
+    // EDT only: a connect is in flight on its own thread
+    private boolean connecting;
+    // Counts connects and disconnects. A listener thread only reconnects, or takes over
+    // `connection`, while the session it started in is still the current one, so a thread left
+    // asleep in its backoff by a Disconnect and Connect just gives up.
+    private final Object sessionLock = new Object();
+    private int session;
 
     // Connection Details
     private final String SERVER_HOST;
@@ -40,7 +49,41 @@ public class ChatClientGUI extends JFrame {
     private static final Font MODERN_FONT = new Font("Segoe UI", Font.PLAIN, 14);
 
     // Protocol Constant
-    private static final String USER_LIST_PREFIX = "/users:";
+    private static final String USER_LIST_COMMAND = "/users";
+
+    // Roster kept up to date from server deltas; only touched by the listener thread
+    private final Set<String> onlineUsers = new LinkedHashSet<>();
+    private String currentRoom = "";
+    private long rosterVersion;
+    private boolean rosterResyncRequested;
+
+    // Chat lines and roster text arrive on the listener thread and are applied on the EDT in
+    // one batch per frame, so a busy room costs one layout and scroll per frame, not per line
+    private static final int FRAME_MS = 33;
+    // -Dchat.gui.lines: lines kept in the chat pane; older ones are trimmed from the top
+    private static final int MAX_CHAT_LINES = Integer.getInteger("chat.gui.lines", 1000);
+    private final ConcurrentLinkedQueue<ChatLine> pendingLines = new ConcurrentLinkedQueue<>();
+    // messages in pendingLines; the queue's own size() walks every node
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private volatile String pendingRoster;
+
+    // A dropped connection is reopened automatically, waiting a random time up to a delay that
+    // doubles from RECONNECT_MIN_MS to RECONNECT_MAX_MS, so clients cut off together (say by a
+    // server restart) do not all come back at once. The new connection resumes at the last
+    // message this one saw, so the server only replays what was missed.
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+
+    // sender is null for a plain line
+    private static final class ChatLine {
+        final String sender;
+        final String text;
+
+        ChatLine(String sender, String text) {
+            this.sender = sender;
+            this.text = text;
+        }
+    }
 
     public ChatClientGUI(String host, int port) {
         // Set predefined connection details
@@ -187,6 +230,8 @@ public class ChatClientGUI extends JFrame {
             }
             System.exit(0);
         });
+
+        new Timer(FRAME_MS, e -> flushPending()).start();
     }
 
     private JPanel createCustomTitleBar() {
@@ -262,6 +307,7 @@ public class ChatClientGUI extends JFrame {
     }
 
     private void attemptConnection() {
+        if (connecting) return;
         if (isConnected.get()) {
             closeConnection(true);
             return;
@@ -277,76 +323,197 @@ public class ChatClientGUI extends JFrame {
         // Use Host/Port
         String host = SERVER_HOST;
         int port = SERVER_PORT;
-        
-        try {
-            // Establish Connection
-            socket = new Socket(host, port);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            // Send Name
-            out.println(name);
-            
-            // UI Update on Success
-            isConnected.set(true);
-            connectButton.setText("Disconnect");
-            customizeButton(connectButton, ERROR_RED);
-            inputField.setEnabled(true);
-            sendButton.setEnabled(true);
-            usernameField.setEnabled(false); // Disable name field while connected
-            onlineUsersArea.setText("Status: Connected to " + host + ":" + port + "\n\nOnline Users:\n");
-            chatArea.setText(""); 
-
-            // Start Listener Thread
-            new Thread(() -> {
+
+        // Connecting, and with TLS the handshake, can take seconds against a slow or unreachable
+        // server: it runs on the thread that then listens, and only the outcome comes back to the EDT
+        connecting = true;
+        connectButton.setEnabled(false);
+        usernameField.setEnabled(false);
+        onlineUsersArea.setText("Status: Connecting to " + host + ":" + port + "...\n\nOnline Users:\n");
+        new Thread(() -> {
+            ChatConnection opened;
+            try {
+                opened = ChatConnection.open(host, port, name);
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> connectFailed(host, port, e));
+                return;
+            }
+            SwingUtilities.invokeLater(() -> connected(opened, name, host, port));
+        }, "chat-connect").start();
+    }
+
+    // EDT: the connection from attemptConnection is open and has sent the name
+    private void connected(ChatConnection opened, String name, String host, int port) {
+        connecting = false;
+        connectButton.setEnabled(true);
+        int generation;
+        synchronized (sessionLock) {
+            generation = ++session;
+            connection = opened;
+        }
+
+        // UI Update on Success
+        isConnected.set(true);
+        connectButton.setText("Disconnect");
+        customizeButton(connectButton, ERROR_RED);
+        inputField.setEnabled(true);
+        sendButton.setEnabled(true);
+        usernameField.setEnabled(false); // Disable name field while connected
+        onlineUsersArea.setText("Status: Connected to " + host + ":" + port + "\n\nOnline Users:\n");
+        clearPending();
+        pendingRoster = null;
+        chatArea.setText(""); 
+
+        onlineUsers.clear();
+        currentRoom = "";
+        rosterVersion = 0;
+        rosterResyncRequested = false;
+
+        // Start Listener Thread
+        new Thread(() -> listenAndReconnect(generation, opened, name, host, port)).start();
+    }
+
+    private void connectFailed(String host, int port, IOException e) {
+        connecting = false;
+        connectButton.setEnabled(true);
+        usernameField.setEnabled(true);
+        onlineUsersArea.setText("Status: Disconnected\n\nOnline Users:\n");
+        String message = e instanceof javax.net.ssl.SSLException
+                ? "Secure connection to " + host + ":" + port + " failed: " + e.getMessage()
+                : "Cannot connect to " + host + ":" + port + ". Server may be offline.";
+        JOptionPane.showMessageDialog(this, message, "Connection Error", JOptionPane.ERROR_MESSAGE);
+    }
+    
+    // Listener thread: reads the connection until it drops, then reconnects until that works
+    // or the user disconnects. No reconnect after the user typed /exit or the server kicked this
+    // client: it would only be turned away again. A name in use is retried with the same backoff,
+    // since after a silent drop it is usually our own old connection, held until it times out.
+    private void listenAndReconnect(int generation, ChatConnection current, String name, String host, int port) {
+        ChatConnection.Listener listener = new ChatConnection.Listener() {
+            public void onChat(String sender, String text) { appendChat(sender, text); }
+            public void onSystem(String text) { appendMessage("[System] " + text); }
+            public void onOther(String line) { appendMessage(line); }
+            public void onRoom(String room) { currentRoom = room; }
+            public void onUserList(long version, java.util.List<String> users) { updateOnlineUsers(version, users); }
+            public void onUserJoined(long version, String user) { applyUserDelta(version, user, true); }
+            public void onUserLeft(long version, String user) { applyUserDelta(version, user, false); }
+        };
+        ChatConnection.Position resumeAt = null;
+        long delay = RECONNECT_MIN_MS;
+        while (true) {
+            try {
+                current.listen(listener);
+            } catch (IOException e) {
+                // Happens on server close or forced disconnect
+            }
+            current.close();
+            if (!isCurrent(generation)) return; // the user disconnected
+            String bye = current.byeReason();
+            if (current.exitSent() || (bye != null && !bye.equals(ChatServer.NAME_IN_USE))) {
+                SwingUtilities.invokeLater(() -> {
+                    if (isCurrent(generation)) closeConnection(false);
+                });
+                return;
+            }
+            if (current.position() != null) {
+                // got into a room, so this was a working connection: resume from it, back off from scratch
+                resumeAt = current.position();
+                delay = RECONNECT_MIN_MS;
+            }
+            appendMessage(bye != null ? "[System] Retrying..." : "[System] Connection lost. Reconnecting...");
+            pendingRoster = "Status: Reconnecting...\n\nOnline Users:\n";
+
+            current = null;
+            while (current == null) {
+                try {
+                    Thread.sleep(java.util.concurrent.ThreadLocalRandom.current().nextLong(delay + 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (!isCurrent(generation)) return;
                 try {
-                    String msg;
-                    while ((msg = in.readLine()) != null) {
-                        if (msg.startsWith(USER_LIST_PREFIX)) {
-                            updateOnlineUsers(msg.substring(USER_LIST_PREFIX.length()));
-                        } else {
-                            appendMessage(msg);
-                        }
-                    }
+                    current = ChatConnection.open(host, port, name, resumeAt);
                 } catch (IOException e) {
-                    // Happens on server close or forced disconnect
-                } finally {
-                    SwingUtilities.invokeLater(() -> closeConnection(false)); 
+                    delay = Math.min(RECONNECT_MAX_MS, delay * 2);
                 }
-            }).start();
-            
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Cannot connect to " + host + ":" + port + ". Server may be offline.", "Connection Error", JOptionPane.ERROR_MESSAGE);
-            isConnected.set(false);
+            }
+            if (!adopt(generation, current)) {
+                current.close();
+                return;
+            }
+            // the server sends a fresh roster; anything older is void
+            rosterVersion = 0;
+            rosterResyncRequested = false;
+            delay = Math.min(RECONNECT_MAX_MS, delay * 2); // until the new one gets into a room
         }
     }
-    
-    private void updateOnlineUsers(String userListCsv) {
-        String[] users = userListCsv.split(",");
-        if (userListCsv.isEmpty() && users.length == 1 && users[0].isEmpty()) {
-            users = new String[0];
+
+    private boolean isCurrent(int generation) {
+        synchronized (sessionLock) {
+            return session == generation && isConnected.get();
         }
+    }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append("Status: Connected\n\nOnline Users (").append(users.length).append("):\n");
-        for (String user : users) {
-            if (!user.trim().isEmpty()) {
-                sb.append("  - ").append(user.trim()).append("\n");
+    // makes a reconnected connection the current one, unless its session has ended meanwhile
+    private boolean adopt(int generation, ChatConnection reconnected) {
+        synchronized (sessionLock) {
+            if (session != generation || !isConnected.get()) return false;
+            connection = reconnected;
+            return true;
+        }
+    }
+
+    private void updateOnlineUsers(long version, java.util.List<String> users) {
+        rosterVersion = version;
+        rosterResyncRequested = false;
+
+        onlineUsers.clear();
+        onlineUsers.addAll(users);
+        showOnlineUsers();
+    }
+
+    private void applyUserDelta(long version, String user, boolean joined) {
+        if (version <= rosterVersion) return; // already part of the last snapshot
+        if (version != rosterVersion + 1) {
+            // missed an update (e.g. dropped while we were slow): ask once for a fresh snapshot
+            if (!rosterResyncRequested) {
+                rosterResyncRequested = true;
+                connection.sendLine(USER_LIST_COMMAND);
             }
+            return;
+        }
+        rosterVersion = version;
+
+        if (joined) {
+            onlineUsers.add(user);
+        } else {
+            onlineUsers.remove(user);
         }
-        onlineUsersArea.setText(sb.toString());
+        showOnlineUsers();
+    }
+
+    private void showOnlineUsers() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Status: Connected\nRoom: #").append(currentRoom);
+        sb.append("\n\nOnline Users (").append(onlineUsers.size()).append("):\n");
+        for (String user : onlineUsers) {
+            sb.append("  - ").append(user).append("\n");
+        }
+        pendingRoster = sb.toString();
     }
 
     private void closeConnection(boolean informServer) {
         if (!isConnected.get()) return;
-        
-        try {
-            if (informServer && out != null) {
-                out.println("/exit");
+        synchronized (sessionLock) {
+            session++; // ends the listener thread's session
+        }
+
+        if (connection != null) {
+            if (informServer) {
+                connection.sendLine("/exit");
             }
-            if(socket != null) socket.close();
-            
-        } catch(IOException ignored) {}
+            connection.close();
+        }
         
         // Reset UI
         isConnected.set(false);
@@ -355,6 +522,7 @@ public class ChatClientGUI extends JFrame {
         inputField.setEnabled(false);
         sendButton.setEnabled(false);
         usernameField.setEnabled(true); // Re-enable name field
+        pendingRoster = null;
         onlineUsersArea.setText("Status: Disconnected\n\nOnline Users:\n");
         appendMessage("[System] Disconnected.");
     }
@@ -378,27 +546,67 @@ public class ChatClientGUI extends JFrame {
 
     private void sendMessage() {
         String msg = inputField.getText().trim();
-        if (!msg.isEmpty() && out != null && isConnected.get()) {
-            out.println(msg);
+        if (!msg.isEmpty() && connection != null && isConnected.get()) {
+            connection.sendLine(msg);
             inputField.setText("");
         }
     }
 
+    // Safe from any thread; the line shows up with the next frame
+    private void appendChat(String sender, String text) {
+        pendingLines.add(new ChatLine(sender, text));
+        pendingCount.incrementAndGet();
+    }
+
     private void appendMessage(String msg) {
+        pendingLines.add(new ChatLine(null, msg));
+        pendingCount.incrementAndGet();
+    }
+
+    private void clearPending() {
+        while (pollPending() != null) {
+            // nothing to do; the pane starts over
+        }
+    }
+
+    private ChatLine pollPending() {
+        ChatLine line = pendingLines.poll();
+        if (line != null) pendingCount.decrementAndGet();
+        return line;
+    }
+
+    // Runs on the EDT every frame
+    private void flushPending() {
+        String roster = pendingRoster;
+        if (roster != null && isConnected.get()) {
+            pendingRoster = null;
+            onlineUsersArea.setText(roster);
+        }
+        int backlog = pendingCount.get();
+        if (backlog == 0) return;
+
+        // Messages that would be trimmed right away are never inserted. Counted in messages: one
+        // with newlines (binary protocol) is a single entry but takes several lines in the pane,
+        // so this keeps at least as many as the pane shows; the trim below counts lines.
+        for (int i = backlog; i > MAX_CHAT_LINES; i--) {
+            pollPending();
+        }
         StyledDocument doc = chatArea.getStyledDocument();
         try {
-            if (msg.startsWith("**")) {
-                int endBold = msg.indexOf("**", 2);
-                if (endBold > 0) {
-                    String username = msg.substring(2, endBold);
-                    String rest = msg.substring(endBold + 2);
-                    doc.insertString(doc.getLength(), username, boldStyle);
-                    doc.insertString(doc.getLength(), rest + "\n", defaultStyle);
+            ChatLine line;
+            for (int i = Math.min(backlog, MAX_CHAT_LINES); i > 0 && (line = pollPending()) != null; i--) {
+                if (line.sender != null) {
+                    doc.insertString(doc.getLength(), line.sender, boldStyle);
+                    doc.insertString(doc.getLength(), ": " + line.text + "\n", defaultStyle);
                 } else {
-                    doc.insertString(doc.getLength(), msg + "\n", defaultStyle);
+                    doc.insertString(doc.getLength(), line.text + "\n", defaultStyle);
                 }
-            } else {
-                doc.insertString(doc.getLength(), msg + "\n", defaultStyle);
+            }
+            // every line ends with "\n", so the last paragraph is always the empty one after it
+            Element root = doc.getDefaultRootElement();
+            int excess = root.getElementCount() - 1 - MAX_CHAT_LINES;
+            if (excess > 0) {
+                doc.remove(0, root.getElement(excess).getStartOffset());
             }
             chatArea.setCaretPosition(doc.getLength());
         } catch (BadLocationException e) {
@@ -412,6 +620,6 @@ public class ChatClientGUI extends JFrame {
         } catch (Exception e) {}
         
         // host and port are still passed here but used internally as constants
-        SwingUtilities.invokeLater(() -> new ChatClientGUI("localhost", 12345).setVisible(true));
+        SwingUtilities.invokeLater(() -> new ChatClientGUI("localhost", ChatServer.PORT).setVisible(true));
     }
 }
\ No newline at end of file
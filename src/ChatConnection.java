@@ -0,0 +1,325 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Client side of a connection to ChatServer, shared by ChatClientGUI and ChatClient.
+// Speaks BinaryProtocol when the server answers the negotiation, otherwise the legacy
+// line protocol, and turns either one into Listener callbacks. Runs over TLS when the client
+// has it on (see Tls). open() blocks for the whole handshake, so never call it on the EDT.
+class ChatConnection implements Closeable {
+    // -Dchat.protocol=text skips negotiation and always uses the line protocol
+    private static final boolean PREFER_BINARY = !"text".equalsIgnoreCase(System.getProperty("chat.protocol"));
+    private static final int NEGOTIATION_TIMEOUT_MS = 2000;
+    // -Dchat.compress=false asks the server not to compress (binary protocol only)
+    private static final boolean COMPRESS = !"false".equalsIgnoreCase(System.getProperty("chat.compress"));
+
+    private static final String SYSTEM_PREFIX = "[System] ";
+
+    interface Listener {
+        void onChat(String sender, String text);
+        void onSystem(String text);
+        default void onRoom(String room) {}
+        default void onUserList(long version, List<String> users) {}
+        default void onUserJoined(long version, String user) {}
+        default void onUserLeft(long version, String user) {}
+        // a legacy line that is none of the above
+        default void onOther(String line) { onSystem(line); }
+    }
+
+    // Where a connection is in its room's message sequence, so a new connection can resume there.
+    // Binary protocol only: the server marks room messages with SEQ frames there.
+    static final class Position {
+        final String room;
+        final long epoch; // 0 until a message of the room was seen
+        final long seq;
+
+        Position(String room, long epoch, long seq) {
+            this.room = room;
+            this.epoch = epoch;
+            this.seq = seq;
+        }
+    }
+
+    private final Socket socket;
+    private final boolean binary;
+    // written by the listen thread only
+    private volatile Position position;
+    // why the server refused or kicked this client (see ChatServer.BYE_PREFIX), null if it did not
+    private volatile String byeReason;
+    private volatile boolean exitSent;
+    private final BufferedReader textIn;
+    private final PrintWriter textOut;
+    private final DataInputStream binaryIn;
+    private final DataOutputStream binaryOut;
+
+    private ChatConnection(Socket socket, boolean binary) throws IOException {
+        this.socket = socket;
+        this.binary = binary;
+        if (binary) {
+            textIn = null;
+            textOut = null;
+            binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            binaryOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } else {
+            textIn = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            textOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            binaryIn = null;
+            binaryOut = null;
+        }
+    }
+
+    // Connect and send the name; falls back to the line protocol if the server does not negotiate
+    static ChatConnection open(String host, int port, String name) throws IOException {
+        return open(host, port, name, null);
+    }
+
+    // Same, resuming at the given position of an earlier connection (ignored by the line protocol)
+    static ChatConnection open(String host, int port, String name, Position resumeAt) throws IOException {
+        ChatConnection connection = null;
+        if (PREFER_BINARY) {
+            connection = negotiateBinary(host, port);
+        }
+        if (connection == null) {
+            connection = new ChatConnection(Tls.connect(host, port), false);
+        }
+        connection.handshake(name, resumeAt);
+        return connection;
+    }
+
+    private static ChatConnection negotiateBinary(String host, int port) throws IOException {
+        Socket socket = Tls.connect(host, port);
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[] { BinaryProtocol.MAGIC, BinaryProtocol.VERSION });
+            out.flush();
+            socket.setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+            InputStream in = socket.getInputStream();
+            if (in.read() == BinaryProtocol.MAGIC && in.read() == BinaryProtocol.VERSION) {
+                socket.setSoTimeout(0);
+                return new ChatConnection(socket, true);
+            }
+        } catch (SocketTimeoutException e) {
+            // a legacy server waits for a name line and never answers
+        }
+        socket.close();
+        return null;
+    }
+
+    private void handshake(String name, Position resumeAt) throws IOException {
+        if (binary) {
+            synchronized (this) {
+                if (COMPRESS) {
+                    binaryOut.writeByte(BinaryProtocol.DEFLATE);
+                    binaryOut.writeInt(0);
+                    binaryOut.writeInt(0);
+                }
+                if (resumeAt != null) {
+                    byte[] room = resumeAt.room.getBytes(StandardCharsets.UTF_8);
+                    binaryOut.writeByte(BinaryProtocol.RESUME);
+                    binaryOut.writeInt(16 + room.length);
+                    binaryOut.writeInt(0);
+                    binaryOut.writeLong(resumeAt.epoch);
+                    binaryOut.writeLong(resumeAt.seq);
+                    binaryOut.write(room);
+                }
+                BinaryProtocol.write(binaryOut, BinaryProtocol.HELLO, 0, name);
+            }
+        } else {
+            textOut.println(name);
+            // tells the server this client answers pings, so it gets them (see Heartbeats) and a
+            // half-open connection is noticed, and that it reads the roster protocol; a legacy
+            // server shows each of these once as a chat line
+            textOut.println(ChatServer.PONG);
+            textOut.println(ChatServer.CAPS);
+        }
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // the room this connection is in and the last message it got there; null before the first room
+    Position position() {
+        return position;
+    }
+
+    // Set once the server has said it is closing this connection for good; reconnecting under
+    // the same name would only be refused or kicked again
+    String byeReason() {
+        return byeReason;
+    }
+
+    // whether /exit was sent, so the end of the connection was asked for
+    boolean exitSent() {
+        return exitSent;
+    }
+
+    // chat text or a command such as /exit or /join; may contain newlines in binary mode
+    synchronized void sendLine(String line) {
+        if (line.equalsIgnoreCase("/exit")) exitSent = true;
+        if (binary) {
+            try {
+                BinaryProtocol.write(binaryOut, BinaryProtocol.LINE, 0, line);
+            } catch (IOException e) {
+                // the listener sees the broken connection and reports it
+            }
+        } else {
+            textOut.println(line);
+        }
+    }
+
+    // Reads until the connection ends, reporting every message to the listener
+    void listen(Listener listener) throws IOException {
+        if (binary) {
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+            BinaryProtocol.Frame inner = new BinaryProtocol.Frame();
+            Compression.Inflating inflating = null;
+            while (BinaryProtocol.read(binaryIn, frame)) {
+                if (frame.type != BinaryProtocol.DEFLATED) {
+                    handle(frame, listener);
+                    continue;
+                }
+                if (inflating == null) inflating = new Compression.Inflating();
+                int length = inflating.inflate(frame.payload, frame.length);
+                byte[] frames = inflating.buffer();
+                int n;
+                for (int offset = 0; offset < length; offset += n) {
+                    n = BinaryProtocol.parse(frames, offset, length, inner);
+                    if (n == 0) throw new IOException("Partial frame in DEFLATED frame");
+                    handle(inner, listener);
+                }
+            }
+        } else {
+            String line;
+            while ((line = textIn.readLine()) != null) {
+                if (line.equals(ChatServer.PING)) {
+                    pong();
+                } else if (line.startsWith(ChatServer.BYE_PREFIX)) {
+                    byeReason = line.substring(ChatServer.BYE_PREFIX.length());
+                } else {
+                    dispatch(line, listener);
+                }
+            }
+        }
+    }
+
+    private void handle(BinaryProtocol.Frame frame, Listener listener) {
+        if (frame.type == BinaryProtocol.PING) {
+            pong();
+        } else if (frame.type == BinaryProtocol.SEQ) {
+            track(frame.getLong(0), frame.getLong(8));
+        } else if (frame.type == BinaryProtocol.BYE) {
+            byeReason = frame.text(0);
+        } else {
+            if (frame.type == BinaryProtocol.ROOM) position = new Position(frame.text(0), 0, -1);
+            dispatch(frame, listener);
+        }
+    }
+
+    // A SEQ frame confirms the room message before it. Only ever moves forward: /history pages
+    // replay older messages with their old numbers.
+    private void track(long epoch, long seq) {
+        Position current = position;
+        if (current == null) return;
+        if (current.epoch == epoch && seq <= current.seq) return;
+        position = new Position(current.room, epoch, seq);
+    }
+
+    // keepalives are answered here, so every client stays connected while idle without its
+    // listener knowing about them
+    private synchronized void pong() {
+        if (binary) {
+            try {
+                BinaryProtocol.write(binaryOut, BinaryProtocol.PONG, 0, "");
+            } catch (IOException e) {
+                // the read loop sees the broken connection
+            }
+        } else {
+            textOut.println(ChatServer.PONG);
+        }
+    }
+
+    private static void dispatch(BinaryProtocol.Frame frame, Listener listener) {
+        switch (frame.type) {
+            case BinaryProtocol.CHAT: {
+                int nameLength = frame.getShort(0);
+                listener.onChat(frame.text(2, nameLength), frame.text(2 + nameLength));
+                break;
+            }
+            case BinaryProtocol.SYSTEM:
+                listener.onSystem(frame.text(0));
+                break;
+            case BinaryProtocol.ROOM:
+                listener.onRoom(frame.text(0));
+                break;
+            case BinaryProtocol.USER_LIST: {
+                int count = frame.getInt(8);
+                List<String> users = new ArrayList<>(count);
+                for (int i = 0, offset = 12; i < count; i++) {
+                    int nameLength = frame.getShort(offset + 4);
+                    users.add(frame.text(offset + 6, nameLength));
+                    offset += 6 + nameLength;
+                }
+                listener.onUserList(frame.getLong(0), users);
+                break;
+            }
+            case BinaryProtocol.USER_JOINED:
+                listener.onUserJoined(frame.getLong(0), frame.text(8));
+                break;
+            case BinaryProtocol.USER_LEFT:
+                listener.onUserLeft(frame.getLong(0), frame.text(8));
+                break;
+            default:
+                // unknown frame types are skipped so newer servers can add them
+        }
+    }
+
+    // Legacy line protocol; chat lines are "**name**: text"
+    static void dispatch(String line, Listener listener) {
+        if (line.startsWith(ChatServer.ROOM_PREFIX)) {
+            listener.onRoom(line.substring(ChatServer.ROOM_PREFIX.length()));
+        } else if (line.startsWith(ChatServer.USER_LIST_PREFIX)) {
+            // "<version>:a,b,c", or a legacy server's unversioned "a,b,c" (version 0)
+            String snapshot = line.substring(ChatServer.USER_LIST_PREFIX.length());
+            int colon = versionEnd(snapshot);
+            List<String> users = new ArrayList<>();
+            for (String user : snapshot.substring(colon + 1).split(",")) {
+                if (!user.trim().isEmpty()) users.add(user.trim());
+            }
+            listener.onUserList(colon < 0 ? 0 : Long.parseLong(snapshot.substring(0, colon)), users);
+        } else if (line.startsWith(ChatServer.USER_JOINED_PREFIX)) {
+            String delta = line.substring(ChatServer.USER_JOINED_PREFIX.length());
+            int colon = delta.indexOf(':');
+            listener.onUserJoined(Long.parseLong(delta.substring(0, colon)), delta.substring(colon + 1));
+        } else if (line.startsWith(ChatServer.USER_LEFT_PREFIX)) {
+            String delta = line.substring(ChatServer.USER_LEFT_PREFIX.length());
+            int colon = delta.indexOf(':');
+            listener.onUserLeft(Long.parseLong(delta.substring(0, colon)), delta.substring(colon + 1));
+        } else if (line.startsWith(SYSTEM_PREFIX)) {
+            listener.onSystem(line.substring(SYSTEM_PREFIX.length()));
+        } else if (line.startsWith("**")) {
+            int endBold = line.indexOf("**", 2);
+            if (endBold > 0 && line.startsWith(": ", endBold + 2)) {
+                listener.onChat(line.substring(2, endBold), line.substring(endBold + 4));
+            } else {
+                listener.onOther(line);
+            }
+        } else {
+            listener.onOther(line);
+        }
+    }
+
+    // index of the ':' ending a leading version number, or -1 if the text does not start with one
+    private static int versionEnd(String text) {
+        int i = 0;
+        while (i < text.length() && i < 19 && Character.isDigit(text.charAt(i))) i++;
+        return i > 0 && i < text.length() && text.charAt(i) == ':' ? i : -1;
+    }
+
+    @Override
+    public void close() {
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
@@ -1,101 +1,632 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 public class ChatServer {
-    private static final int PORT = 12345;
-    // hold PrintWriter for broadcast and the name for user list management
-    private static Map<String, PrintWriter> clients = new ConcurrentHashMap<>();
-    private static final String USER_LIST_PREFIX = "/users:";
+    static final int PORT = Integer.getInteger("chat.port", 12345);
+    // "thread" = one platform thread per client, "virtual" = one virtual thread per client (Java 21+),
+    // "nio" = selector-based reactors (see NioChatServer)
+    private static final String MODE = System.getProperty("chat.server.mode", "thread");
+    // every connected client by name, for name uniqueness; fan-out goes through rooms
+    private static Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
+    private static final RoomRegistry rooms = new RoomRegistry();
+    // -Dchat.log.dir=<dir> keeps every room message in a MessageLog there; off when unset
+    private static volatile ScheduledExecutorService logRetention; // set by openLog
+    private static final MessageLog log = openLog();
 
-    public static void startServer() {
+    // Lifecycle: startServer() completes `ready` once the port is bound; stop() (also run on
+    // SIGTERM) drains the server for a rolling restart, waiting at most DRAIN_MS for clients
+    // to receive what is already queued for them
+    static final long DRAIN_MS = Long.getLong("chat.shutdown.drain.ms", 5000);
+    private static final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private static final AtomicBoolean stopping = new AtomicBoolean();
+    private static volatile Closeable listener;
+
+    // Roster protocol (per room): "/room:<name>" then a full "/users:<version>:a,b,c" snapshot
+    // when a client enters a room or asks with "/users"; every later change is a
+    // "/user+:<version>:name" or "/user-:<version>:name" delta, so a join or leave costs
+    // O(N) bytes instead of O(N^2)
+    static final String ROOM_PREFIX = "/room:";
+    static final String USER_LIST_PREFIX = "/users:";
+    static final String USER_JOINED_PREFIX = "/user+:";
+    static final String USER_LEFT_PREFIX = "/user-:";
+    // A line client opts in to the lines above, and to BYE_PREFIX, by sending CAPS after its name.
+    // Until then it gets what a legacy client understands: an unversioned "/users:a,b,c" on
+    // every change and nothing else of the roster protocol.
+    static final String CAPS = "/caps";
+    // keepalive (see Heartbeats): the server sends PING to a silent client, which answers PONG
+    static final String PING = "/ping";
+    static final String PONG = "/pong";
+    // sent right before the server closes a client it refused or kicked, "/bye:<reason>", so the
+    // client knows that reconnecting as it was will not help; a shutdown or a dropped link has none
+    static final String BYE_PREFIX = "/bye:";
+    // the BYE reason for a name taken by another connection; unlike the others it can pass, as
+    // when that connection is this client's own dead one and is yet to time out
+    static final String NAME_IN_USE = "name_in_use";
+    private static final String USER_LIST_COMMAND = "/users";
+    private static final String JOIN_COMMAND = "/join";
+    private static final String LEAVE_COMMAND = "/leave";
+    private static final String ROOMS_COMMAND = "/rooms";
+    private static final String HISTORY_COMMAND = "/history";
+    private static final String MSG_COMMAND = "/msg";
+    private static final int MAX_HISTORY_PAGE = 200;
+
+    // Starts the server in the background; the future completes once it accepts connections,
+    // or fails if it cannot (say the port is taken)
+    public static CompletableFuture<Void> startServer() {
+        boolean tls = Tls.serverEnabled(); // a keystore that does not load stops the server here
+        ServerMetrics.startHttp();
+        Cluster.start();
+        Heartbeats.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stop(DRAIN_MS), "chat-shutdown"));
+        if (MODE.equalsIgnoreCase("nio")) {
+            NioChatServer.start(PORT);
+            return ready;
+        }
+        Executor handlers = handlerExecutor();
         new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-                System.out.println("Server started on port " + PORT);
+            try (ServerSocket serverSocket = Tls.serverSocket(PORT)) {
+                listening(serverSocket, MODE + (tls ? ", TLS" : ""));
                 while (true) {
                     Socket client = serverSocket.accept();
-                    new Thread(new ClientHandler(client)).start();
+                    ServerMetrics.connectionsOpened.increment();
+                    handlers.execute(new ClientHandler(client, handlers));
                 }
             } catch (IOException e) {
-                System.out.println("Server error: " + e.getMessage());
+                listenFailed(e);
             }
         }).start();
+        return ready;
+    }
+
+    // called by the accepting thread of whichever mode runs, once its socket is bound
+    static void listening(Closeable socket, String description) {
+        listener = socket;
+        ServerLog.info("Server started on port " + PORT + " (" + description + ")");
+        ready.complete(null);
+    }
+
+    // the accepting thread ended: the socket could not be bound, or stop() closed it
+    static void listenFailed(IOException e) {
+        if (stopping.get()) return;
+        ServerLog.info("Server error: " + e.getMessage());
+        ready.completeExceptionally(e);
+    }
+
+    // Stops the server for a restart without losing what clients were already sent: no new
+    // connections or names, every client is told and its queue written out, waiting at most
+    // drainMillis in all, then whatever is left is closed. The bundled clients reconnect by
+    // themselves, to this address or, behind a load balancer, to another node. Heartbeats, the
+    // cluster links, the stats endpoint and the NIO reactors stop with it. Runs once, and a
+    // stopped server cannot be started again in the same JVM.
+    public static void stop(long drainMillis) {
+        if (!stopping.compareAndSet(false, true)) return;
+        ServerLog.info("Stopping, draining " + clients.size() + " clients");
+        Closeable socket = listener;
+        if (socket != null) {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+        WireMessage notice = WireMessage.system("Server is shutting down. Reconnect to continue.");
+        for (ClientConnection conn : clients.values()) {
+            conn.send(notice);
+            conn.disconnecting(ServerMetrics.Disconnect.SHUTDOWN);
+            conn.closeAfterFlush();
+        }
+        // each client leaves (and so drops out of clients) once its writer has flushed and closed it
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        try {
+            while (!clients.isEmpty() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int stuck = clients.size();
+        for (ClientConnection conn : clients.values()) {
+            conn.disconnecting(ServerMetrics.Disconnect.SHUTDOWN);
+            conn.close();
+        }
+        Heartbeats.stop();
+        Cluster.stop();
+        NioChatServer.stop();
+        ServerMetrics.stopHttp();
+        if (logRetention != null) logRetention.shutdownNow();
+        // from here on, a handler still draining (say one stuck in a write) can no longer append
+        if (log != null) log.close();
+        ServerLog.info("Server stopped" + (stuck > 0 ? ", " + stuck + " clients closed before their queues drained" : ""));
+        ServerLog.flush(1000); // stop() often runs in the shutdown hook, right before the JVM exits
+    }
+
+    // Runs each ClientHandler on its own thread. Virtual threads are looked up reflectively
+    // so the server still compiles and runs on Java 17.
+    private static Executor handlerExecutor() {
+        if (MODE.equalsIgnoreCase("virtual")) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                ServerLog.info("Virtual threads need Java 21+, using platform threads.");
+            }
+        }
+        return task -> new Thread(task).start();
+    }
+
+    private static MessageLog openLog() {
+        String dir = System.getProperty("chat.log.dir");
+        if (dir == null) return null;
+        try {
+            MessageLog log = new MessageLog(Paths.get(dir),
+                    Integer.getInteger("chat.log.segment.bytes", 64 << 20),
+                    Long.getLong("chat.log.retention.bytes", 1L << 30),
+                    TimeUnit.HOURS.toMillis(Long.getLong("chat.log.retention.hours", 7 * 24)));
+            ServerLog.info("Message log in " + dir + " at offset " + log.nextOffset());
+            logRetention = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "log-retention");
+                t.setDaemon(true);
+                return t;
+            });
+            logRetention.scheduleWithFixedDelay(log::enforceRetention, 1, 1, TimeUnit.MINUTES);
+            return log;
+        } catch (IOException e) {
+            ServerLog.info("Message log disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    static Collection<ClientConnection> connections() {
+        return clients.values();
+    }
+
+    static int clientCount() {
+        return clients.size();
+    }
+
+    static int roomCount() {
+        return rooms.list().size();
+    }
+
+    public static void main(String[] args) {
+        startServer();
+    }
+
+    // Name handshake shared by every server mode; returns false if the client must be disconnected
+    static boolean join(ClientConnection conn, String name) {
+        if (stopping.get()) {
+            conn.send(WireMessage.system("Server is shutting down. Reconnect to continue."));
+            conn.disconnecting(ServerMetrics.Disconnect.SHUTDOWN);
+            return false;
+        }
+        if (name == null || name.trim().isEmpty()) {
+            conn.refuse(ServerMetrics.Disconnect.REJECTED, "Name is required. Disconnecting.");
+            return false;
+        }
+        if (clients.putIfAbsent(name, conn) != null) {
+            conn.refuse(ServerMetrics.Disconnect.REJECTED, NAME_IN_USE, "Name '" + name + "' is already in use. Disconnecting.");
+            return false;
+        }
+        // unique on this node; with a cluster, also ask whichever node decides for this name
+        if (!Cluster.claim(name)) {
+            clients.remove(name, conn);
+            conn.refuse(ServerMetrics.Disconnect.REJECTED, NAME_IN_USE, "Name '" + name + "' is already in use. Disconnecting.");
+            return false;
+        }
+        conn.name = name;
+
+        synchronized (conn) {
+            boolean resumed = conn.resumeRoom != null;
+            Room room = rooms.join(conn, resumed ? conn.resumeRoom : RoomRegistry.LOBBY);
+            conn.resumeRoom = null;
+            conn.resumeEpoch = 0;
+            Cluster.entered(name, room.name);
+            broadcastSystem(room, name + (resumed ? " reconnected." : " joined the chat."));
+        }
+        return true;
+    }
+
+    // Frames a binary client may send before HELLO; false if the frame has no business there
+    static boolean beforeHello(ClientConnection conn, BinaryProtocol.Frame frame) {
+        switch (frame.type) {
+            case BinaryProtocol.DEFLATE:
+                conn.deflate = true;
+                return true;
+            case BinaryProtocol.RESUME:
+                return resume(conn, frame);
+            default:
+                return false;
+        }
+    }
+
+    // A reconnecting binary client sends RESUME just before HELLO: join puts it back in the room
+    // it was in and replays only what it missed there. False if the frame is malformed.
+    private static boolean resume(ClientConnection conn, BinaryProtocol.Frame frame) {
+        if (frame.length < 16) return false;
+        String roomName = frame.text(16);
+        if (roomName.isEmpty() || roomName.contains(" ")) return true; // not a room we would create
+        conn.resumeEpoch = frame.getLong(0);
+        conn.resumeSeq = frame.getLong(8);
+        conn.resumeRoom = roomName;
+        return true;
+    }
+
+    // Handle one line from a joined client; returns false when the client asked to leave
+    static boolean onMessage(ClientConnection conn, String msg) {
+        if (msg.equals(PONG)) {
+            conn.answersPings = true; // the read already counted as a sign of life
+            return true;
+        }
+        if (msg.equals(CAPS)) {
+            // it already got the legacy roster on entering its room; now the versioned one
+            synchronized (conn) {
+                conn.rosterProtocol = true;
+                Room room = conn.room;
+                if (room != null) {
+                    conn.send(WireMessage.room(room.name));
+                    room.sendUserList(conn);
+                }
+            }
+            return true;
+        }
+        // draining: the other clients' queues are closed, so this would reach only some of them
+        if (stopping.get()) return false;
+        ServerMetrics.messagesIn.increment();
+        if (msg.equalsIgnoreCase("/exit")) {
+            conn.disconnecting(ServerMetrics.Disconnect.EXIT);
+            return false;
+        }
+        if (conn.inputRate != null && !conn.inputRate.tryTake()) return throttled(conn);
+        if (msg.equals(USER_LIST_COMMAND)) {
+            // a client that noticed a gap in roster versions resyncs from a fresh snapshot
+            Room room = conn.room;
+            if (room != null) room.sendUserList(conn);
+        } else if (msg.equals(ROOMS_COMMAND)) {
+            listRooms(conn);
+        } else if (msg.equals(HISTORY_COMMAND) || msg.startsWith(HISTORY_COMMAND + " ")) {
+            sendHistory(conn, msg.substring(HISTORY_COMMAND.length()).trim());
+        } else if (msg.startsWith(MSG_COMMAND + " ")) {
+            sendDirect(conn, msg.substring(MSG_COMMAND.length()).trim());
+        } else if (msg.equals(LEAVE_COMMAND)) {
+            switchRoom(conn, RoomRegistry.LOBBY);
+        } else if (msg.startsWith(JOIN_COMMAND + " ")) {
+            String roomName = msg.substring(JOIN_COMMAND.length()).trim();
+            if (roomName.startsWith("#")) roomName = roomName.substring(1);
+            if (roomName.isEmpty() || roomName.contains(" ")) {
+                conn.send(WireMessage.system("Usage: /join <room>"));
+            } else {
+                switchRoom(conn, roomName);
+            }
+        } else {
+            Room room = conn.room;
+            if (room != null) broadcastChat(room, conn, msg);
+        }
+        return true;
+    }
+
+    // The line over the client's rate is dropped; the first drop in a window warns the client
+    // and enough of them disconnect it. Returns false when the client must be disconnected.
+    private static boolean throttled(ClientConnection conn) {
+        ServerMetrics.throttledMessages.increment();
+        long now = System.nanoTime();
+        if (now - conn.throttleWindowStart > TimeUnit.MILLISECONDS.toNanos(ClientConnection.FLOOD_WINDOW_MS)) {
+            conn.throttleWindowStart = now;
+            conn.throttled = 0;
+        }
+        if (++conn.throttled == 1) {
+            conn.send(WireMessage.system("You are sending too fast; messages are being dropped."));
+        }
+        if (ClientConnection.FLOOD_DISCONNECT > 0 && conn.throttled >= ClientConnection.FLOOD_DISCONNECT) {
+            conn.refuse(ServerMetrics.Disconnect.RATE_LIMITED, "Too many messages. Disconnecting.");
+            return false;
+        }
+        return true;
+    }
+
+    static void leave(ClientConnection conn) {
+        // remove(key, value) so a rejected duplicate never evicts the user who owns the name
+        if (conn.name == null || !clients.remove(conn.name, conn)) return;
+        synchronized (conn) {
+            Room room = rooms.leave(conn);
+            Cluster.exited(conn.name);
+            if (room != null) broadcastSystem(room, conn.name + " left the chat.");
+        }
     }
 
-    private static class ClientHandler implements Runnable {
+    private static void switchRoom(ClientConnection conn, String roomName) {
+        synchronized (conn) {
+            Room current = conn.room;
+            if (current == null) return; // disconnecting
+            if (current.name.equals(roomName)) {
+                conn.send(WireMessage.system("You are already in #" + roomName + "."));
+                return;
+            }
+            rooms.leave(conn);
+            broadcastSystem(current, conn.name + " left #" + current.name + ".");
+            Room room = rooms.join(conn, roomName);
+            Cluster.entered(conn.name, room.name);
+            broadcastSystem(room, conn.name + " joined #" + room.name + ".");
+        }
+    }
+
+    // "/history [n]": the n messages before the oldest one this client has seen in its room
+    private static void sendHistory(ClientConnection conn, String arg) {
+        Room room = conn.room;
+        if (room == null) return;
+        int n;
+        try {
+            n = arg.isEmpty() ? Room.HISTORY_SIZE : Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            n = 0;
+        }
+        if (n <= 0) {
+            conn.send(WireMessage.system("Usage: /history <n>"));
+            return;
+        }
+        List<WireMessage> page = room.history(conn, Math.min(n, MAX_HISTORY_PAGE), log);
+        if (page.isEmpty()) {
+            conn.send(WireMessage.system("No earlier messages in #" + room.name + "."));
+            return;
+        }
+        if (conn.deflate) {
+            conn.send(Compression.batch(page));
+            return;
+        }
+        for (WireMessage msg : page) {
+            conn.send(msg);
+        }
+    }
+
+    // "/msg <user> <text>": one lookup in the name map and one queued frame for the recipient,
+    // plus the sender's echo; no room is involved. Shown as a chat line from "sender -> user".
+    private static void sendDirect(ClientConnection sender, String args) {
+        int space = args.indexOf(' ');
+        String target = space < 0 ? "" : args.substring(0, space);
+        String text = space < 0 ? "" : args.substring(space + 1).trim();
+        if (target.isEmpty() || text.isEmpty()) {
+            sender.send(WireMessage.system("Usage: /msg <user> <text>"));
+            return;
+        }
+        WireMessage direct = WireMessage.chat(sender.id, sender.name + " -> " + target, text);
+        ClientConnection recipient = clients.get(target);
+        // a name still in its handshake is not online yet
+        if (recipient != null && recipient.name != null) {
+            recipient.send(direct);
+        } else if (!Cluster.direct(sender.name, target, text)) {
+            sender.send(WireMessage.system("User '" + target + "' is not online."));
+            return;
+        }
+        ServerMetrics.directMessages.increment();
+        if (recipient != sender) sender.send(direct);
+    }
+
+    private static void listRooms(ClientConnection conn) {
+        StringBuilder sb = new StringBuilder("Rooms:");
+        for (Room room : rooms.list()) {
+            sb.append(' ').append('#').append(room.name).append(" (").append(room.size()).append(')');
+        }
+        conn.send(WireMessage.system(sb.toString()));
+    }
+
+    private static void broadcastChat(Room room, ClientConnection sender, String msg) {
+        if (!room.admitChat()) {
+            ServerMetrics.throttledMessages.increment();
+            sender.send(WireMessage.system("#" + room.name + " is too busy; your message was dropped."));
+            return;
+        }
+        broadcast(room, WireMessage.chat(sender.id, sender.name, msg), () -> append(MessageLog.CHAT, room, sender.name, msg));
+        Cluster.chat(room.name, sender.name, msg);
+    }
+
+    private static void broadcastSystem(Room room, String msg) {
+        broadcast(room, WireMessage.system(msg), () -> append(MessageLog.SYSTEM, room, "", msg));
+        Cluster.system(room.name, msg);
+    }
+
+    // ---- cluster peers (see Cluster); nothing here is relayed again ----
+
+    // a room with no members here has nobody to deliver to, and its history lives where it was said
+    static void relayedChat(String roomName, String sender, String msg) {
+        Room room = rooms.get(roomName);
+        if (room == null) return;
+        Cluster.RemoteUser user = Cluster.remoteUser(sender);
+        broadcast(room, WireMessage.chat(user != null ? user.id : 0, sender, msg), () -> append(MessageLog.CHAT, room, sender, msg));
+    }
+
+    static void relayedSystem(String roomName, String msg) {
+        Room room = rooms.get(roomName);
+        if (room == null) return;
+        broadcast(room, WireMessage.system(msg), () -> append(MessageLog.SYSTEM, room, "", msg));
+    }
+
+    static void relayedDirect(String sender, String target, String msg) {
+        ClientConnection recipient = clients.get(target);
+        if (recipient == null || recipient.name == null) return;
+        Cluster.RemoteUser user = Cluster.remoteUser(sender);
+        recipient.send(WireMessage.chat(user != null ? user.id : 0, sender + " -> " + target, msg));
+    }
+
+    // a user of another node entered a room, or is already there after a resync
+    static void remoteEnter(Cluster.RemoteUser user, String roomName) {
+        synchronized (user) {
+            Room current = user.room;
+            if (current != null && current.name.equals(roomName)) return;
+            rooms.leave(user);
+            rooms.join(user, roomName);
+        }
+    }
+
+    static void remoteExit(Cluster.RemoteUser user) {
+        synchronized (user) {
+            rooms.leave(user);
+        }
+    }
+
+    // the message's log offset, or -1 if it was not logged
+    private static long append(byte type, Room room, String sender, String msg) {
+        if (log == null) return -1;
+        try {
+            return log.append(type, room.name, sender, msg, System.currentTimeMillis());
+        } catch (IOException e) {
+            ServerLog.info("Message log append failed: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    // Encoded once per protocol; every member of the room queues the same read-only frame,
+    // and the room keeps it for history replay; logAppend runs under the room's history lock
+    private static void broadcast(Room room, WireMessage msg, LongSupplier logAppend) {
+        long start = System.nanoTime();
+        room.broadcast(msg, logAppend);
+        ServerMetrics.fanOutNanos.record(System.nanoTime() - start);
+        ServerMetrics.broadcasts.increment();
+        if (ServerLog.sampleBroadcast()) {
+            ServerLog.info("Broadcast #" + room.name + " (" + room.size() + "): " + msg.textLine());
+        }
+    }
+
+    private static class ClientHandler extends ClientConnection implements Runnable {
         private Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String name;
+        private Executor writerExecutor;
+        private OutputStream out;
 
-        ClientHandler(Socket socket) {
+        ClientHandler(Socket socket, Executor writerExecutor) {
             this.socket = socket;
+            this.writerExecutor = writerExecutor;
         }
 
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                // Server now waits for the name from the client GUI
-                name = in.readLine(); 
-                
-                if (name == null || name.trim().isEmpty() || clients.containsKey(name)) {
-                     // handle empty/duplicate name
-                     if (name == null || name.trim().isEmpty()) {
-                        out.println("[System] Name is required. Disconnecting.");
-                     } else {
-                        out.println("[System] Name '" + name + "' is already in use. Disconnecting.");
-                     }
-                     return;
-                } 
-
-                clients.put(name, out);
-
-                broadcast(name + " joined the chat.", false); // Chat message
-                sendUserListToAll(); // Update the sidebar for everyone
-
-                String msg;
-                while ((msg = in.readLine()) != null) {
-                    if (msg.equalsIgnoreCase("/exit")) break;
-                    broadcast(name + ": " + msg, true); // True means format as chat message
+                socket.setTcpNoDelay(true); // the writer already batches, Nagle would only add delay
+                socket.setKeepAlive(true); // the only dead-peer check for clients that are never pinged
+                Heartbeats.register(this);
+                InputStream input = new BufferedInputStream(ServerMetrics.countingInput(socket.getInputStream()));
+                out = socket.getOutputStream();
+                writerExecutor.execute(this::writeLoop);
+
+                // a binary client opens with MAGIC; anything else is a legacy client's name line
+                input.mark(1);
+                if (input.read() == BinaryProtocol.MAGIC) {
+                    readBinary(new DataInputStream(input));
+                } else {
+                    input.reset();
+                    readText(new LineReader(input, MAX_LINE));
                 }
 
+            } catch (LineReader.TooLongException e) {
+                lineTooLong();
             } catch (IOException e) {
-                System.out.println("Client error or forced disconnect.");
+                disconnecting(ServerMetrics.Disconnect.ERROR);
             } finally {
                 cleanUp();
             }
         }
 
-        private void cleanUp() {
-            if (name != null) {
-                clients.remove(name);
-                broadcast(name + " left the chat.", false);
-                sendUserListToAll(); // Update the sidebar for everyone
+        private void readText(LineReader in) throws IOException {
+            // Server now waits for the name from the client GUI
+            if (!join(this, in.readLine())) return;
+
+            String msg;
+            while ((msg = in.readLine()) != null) {
+                markAlive();
+                if (!onMessage(this, msg)) return;
             }
-            try { socket.close(); } catch (IOException ignored) {}
+            disconnecting(ServerMetrics.Disconnect.EOF);
         }
 
-        // Overloaded broadcast to allow for plain text (for system messages) or formatted chat
-        private void broadcast(String msg, boolean isChatMessage) {
-            String finalMsg = isChatMessage ? "**" + msg.replaceFirst(":", "**:") : "[System] " + msg;
-            for (PrintWriter writer : clients.values()) {
-                writer.println(finalMsg);
+        private void readBinary(DataInputStream in) throws IOException {
+            if (in.read() != BinaryProtocol.VERSION) {
+                disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                return;
+            }
+            binary = true;
+            send(BinaryProtocol.handshake());
+
+            BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+            // every frame a client sends is one line at most; longer ones are refused unread
+            boolean read = BinaryProtocol.read(in, frame, MAX_LINE);
+            while (read && frame.type != BinaryProtocol.HELLO) {
+                if (!beforeHello(this, frame)) break;
+                read = BinaryProtocol.read(in, frame, MAX_LINE);
+            }
+            if (!read || frame.type != BinaryProtocol.HELLO) {
+                disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                return;
+            }
+            if (!join(this, frame.text(0))) return;
+
+            while (BinaryProtocol.read(in, frame, MAX_LINE)) {
+                markAlive();
+                if (frame.type != BinaryProtocol.LINE) continue;
+                if (!onMessage(this, frame.text(0))) return;
             }
-            System.out.println("Broadcast: " + finalMsg);
+            disconnecting(ServerMetrics.Disconnect.EOF);
         }
 
-        // method to send the current user list to ALL clients
-        private void sendUserListToAll() {
-            String userList = String.join(",", clients.keySet());
-            String message = USER_LIST_PREFIX + userList;
-            
-            for (PrintWriter writer : clients.values()) {
-                writer.println(message);
+        // Drains this client's outbound queue so broadcasters never block on its socket.
+        // Frames are shared, so they are copied out with absolute gets into this writer's own
+        // buffer, and everything that arrives within the flush window goes out in one write.
+        private void writeLoop() {
+            byte[] buffer = new byte[FLUSH_BYTES];
+            long window = TimeUnit.MILLISECONDS.toNanos(FLUSH_WINDOW_MS);
+            try {
+                ByteBuffer frame;
+                while ((frame = takeOutbound()) != null) {
+                    long deadline = System.nanoTime() + window;
+                    int used = 0;
+                    do {
+                        for (int offset = 0; offset < frame.limit(); ) {
+                            if (used == buffer.length) {
+                                write(buffer, used);
+                                used = 0;
+                            }
+                            int length = Math.min(buffer.length - used, frame.limit() - offset);
+                            frame.get(offset, buffer, used, length);
+                            used += length;
+                            offset += length;
+                        }
+                        framesWritten.increment();
+                    } while (used < buffer.length && (frame = pollOutbound(deadline - System.nanoTime())) != null);
+                    write(buffer, used);
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                close();
             }
         }
+
+        private void write(byte[] buffer, int length) throws IOException {
+            out.write(buffer, 0, length);
+            socketWrites.increment();
+            ServerMetrics.bytesOut.add(length);
+        }
+
+        private void lineTooLong() {
+            refuse(ServerMetrics.Disconnect.LINE_TOO_LONG, "Line longer than " + MAX_LINE + " bytes. Disconnecting.");
+        }
+
+        private void cleanUp() {
+            Heartbeats.unregister(this);
+            leave(this);
+            recordDisconnect();
+            if (droppedCount() > 0) {
+                ServerLog.info(name + " missed " + droppedCount() + " messages (outbound queue full)");
+            }
+            // the writer flushes what is already queued (e.g. a rejection notice), then closes the socket
+            if (out == null) close(); else shutdownOutbound();
+        }
+
+        @Override
+        void close() {
+            shutdownOutbound();
+            try { socket.close(); } catch (IOException ignored) {}
+        }
     }
 }
\ No newline at end of file
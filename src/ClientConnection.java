@@ -0,0 +1,275 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A connected user as seen by ChatServer, independent of how its socket is driven
+// (thread-per-client ClientHandler or the NIO reactor in NioChatServer).
+// Every connection owns a bounded outbound queue so a broadcast only enqueues;
+// the connection's own writer drains it, and a slow reader can only hurt itself.
+// Queued messages are encoded, read-only frames shared by every recipient of a broadcast.
+abstract class ClientConnection {
+    enum OverflowPolicy { DROP_OLDEST, DISCONNECT }
+
+    static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.overflow", "drop-oldest").toUpperCase().replace('-', '_'));
+
+    // Writers coalesce queued frames into one socket write of up to FLUSH_BYTES. After the first
+    // frame of a batch they wait at most FLUSH_WINDOW_MS for more, so batching never adds more
+    // latency than that; 0 only batches what is already queued.
+    static final int FLUSH_BYTES = Integer.getInteger("chat.flush.bytes", 16 * 1024);
+    static final long FLUSH_WINDOW_MS = Long.getLong("chat.flush.window.ms", 1);
+
+    // Input limits. Each client may send RATE lines per second with bursts of up to RATE_BURST
+    // (0 = unlimited); lines over the limit are dropped, and a client that has FLOOD_DISCONNECT
+    // lines dropped within FLOOD_WINDOW_MS is disconnected (0 = never). A line, or a binary
+    // LINE/HELLO payload, longer than MAX_LINE bytes disconnects the client before it is buffered.
+    static final int RATE = Integer.getInteger("chat.rate.messages", 20);
+    static final int RATE_BURST = Integer.getInteger("chat.rate.burst", 40);
+    static final int FLOOD_DISCONNECT = Integer.getInteger("chat.rate.disconnect.after", 100);
+    static final long FLOOD_WINDOW_MS = 10_000;
+    static final int MAX_LINE = Integer.getInteger("chat.max.line", 4096);
+
+    // server-wide counters
+    static final LongAdder droppedMessages = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+    static final LongAdder framesWritten = new LongAdder();
+    static final LongAdder socketWrites = new LongAdder();
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    // identifies this client as a sender in binary frames
+    final int id = nextId.incrementAndGet();
+    // true once the client negotiated BinaryProtocol, decided before the name handshake
+    volatile boolean binary;
+    // true if that binary client also takes DEFLATED frames, likewise decided before the name
+    volatile boolean deflate;
+    // true for a line client that sent ChatServer.CAPS; binary clients always speak the roster protocol
+    volatile boolean rosterProtocol;
+    // set once the name handshake succeeds, null before that
+    volatile String name;
+    // the room this client currently talks in; changed through RoomRegistry only
+    volatile Room room;
+    // where "/history" continues in the current room: its ring sequence and MessageLog offset;
+    // only touched by whoever handles this client's input
+    long historyCursor;
+    long historyLogCursor;
+    // from a binary client's RESUME: the room it was in and the last message it saw there;
+    // used by its first join only
+    String resumeRoom;
+    long resumeEpoch;
+    long resumeSeq = -1;
+    // flood control, also only touched by whoever handles this client's input
+    final TokenBucket inputRate = TokenBucket.perSecond(RATE, RATE_BURST);
+    long throttleWindowStart;
+    int throttled;
+    // keepalive state (see Heartbeats): alive and answersPings are set by the input side, the
+    // rest is the wheel's; answersPings marks a text client that has sent a PONG
+    private volatile boolean alive;
+    volatile boolean answersPings;
+    int missedHeartbeats;
+    volatile int heartbeatSlot = -1;
+    // why this connection is ending, set by whoever notices first; null until then
+    private volatile ServerMetrics.Disconnect disconnect;
+
+    // ReentrantLock rather than synchronized so a virtual-thread writer parked here does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private boolean outboundShutdown;
+    private long dropped;
+
+    // Encode one protocol line (without the trailing newline) as UTF-8 ending in '\n'.
+    // Writers only use absolute gets on the result, so one frame can be queued to any number of clients.
+    static ByteBuffer frame(String line) {
+        return ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    // queue a message in whichever protocol this client speaks
+    final void send(WireMessage msg) {
+        if (deflate) {
+            send(msg.deflatedFrame());
+        } else if (binary || rosterProtocol) {
+            send(msg.frame(binary));
+        } else {
+            ByteBuffer frame = msg.legacyFrame();
+            if (frame != null) send(frame);
+        }
+    }
+
+    // whether roster changes reach this client as deltas, or else as whole legacy snapshots
+    boolean takesRosterDeltas() {
+        return binary || rosterProtocol;
+    }
+
+    // queue an already encoded frame for this client; never blocks
+    final void send(ByteBuffer frame) {
+        boolean wasEmpty = false;
+        boolean disconnect = false;
+        lock.lock();
+        try {
+            if (outboundShutdown) return;
+            if (outbound.size() >= OUTBOUND_CAPACITY && OVERFLOW_POLICY == OverflowPolicy.DISCONNECT) {
+                outboundShutdown = true;
+                outbound.clear();
+                notEmpty.signal();
+                disconnect = true;
+            } else {
+                if (outbound.size() >= OUTBOUND_CAPACITY) {
+                    outbound.poll();
+                    dropped++;
+                    droppedMessages.increment();
+                }
+                wasEmpty = outbound.isEmpty();
+                outbound.add(frame);
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (disconnect) {
+            // closed outside the lock: close() broadcasts a leave notice into other queues
+            slowConsumerDisconnects.increment();
+            disconnecting(ServerMetrics.Disconnect.SLOW_CONSUMER);
+            ServerLog.info("Disconnecting slow consumer " + name);
+            close();
+        } else if (wasEmpty) {
+            outboundReady();
+        }
+    }
+
+    // next queued frame or null if the queue is empty
+    final ByteBuffer pollOutbound() {
+        lock.lock();
+        try {
+            return outbound.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // next queued frame, waiting for one; null once the queue is shut down and drained
+    final ByteBuffer takeOutbound() throws InterruptedException {
+        lock.lock();
+        try {
+            while (outbound.isEmpty()) {
+                if (outboundShutdown) return null;
+                notEmpty.await();
+            }
+            return outbound.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // next queued frame, waiting at most timeoutNanos for one; null if none arrived in time
+    final ByteBuffer pollOutbound(long timeoutNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (outbound.isEmpty()) {
+                if (outboundShutdown || timeoutNanos <= 0) return null;
+                timeoutNanos = notEmpty.awaitNanos(timeoutNanos);
+            }
+            return outbound.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    final boolean hasOutbound() {
+        lock.lock();
+        try {
+            return !outbound.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // stop accepting new frames; whatever is already queued still gets written
+    final void shutdownOutbound() {
+        lock.lock();
+        try {
+            outboundShutdown = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    final boolean isOutboundShutdown() {
+        lock.lock();
+        try {
+            return outboundShutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    final int outboundSize() {
+        lock.lock();
+        try {
+            return outbound.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the client sent something, so it is not a dead peer; cheap enough to call on every read
+    final void markAlive() {
+        if (!alive) alive = true;
+    }
+
+    // whether anything arrived since the last call
+    final boolean takeAlive() {
+        if (!alive) return false;
+        alive = false;
+        return true;
+    }
+
+    final void disconnecting(ServerMetrics.Disconnect reason) {
+        if (disconnect == null) disconnect = reason;
+    }
+
+    // Tells the client why it is being disconnected and that it should not just reconnect; the
+    // caller then closes the connection as it does for any other disconnect
+    final void refuse(ServerMetrics.Disconnect reason, String text) {
+        refuse(reason, reason.name().toLowerCase(Locale.ROOT), text);
+    }
+
+    final void refuse(ServerMetrics.Disconnect reason, String byeReason, String text) {
+        send(WireMessage.system(text));
+        send(WireMessage.bye(byeReason));
+        disconnecting(reason);
+    }
+
+    // once per connection, when it is torn down; a connection nobody gave a reason for failed
+    final void recordDisconnect() {
+        ServerMetrics.Disconnect reason = disconnect;
+        ServerMetrics.disconnected(reason == null ? ServerMetrics.Disconnect.ERROR : reason);
+    }
+
+    final long droppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called when the queue goes from empty to non-empty, outside the queue lock
+    void outboundReady() {}
+
+    // stop taking frames and close once the queued ones are written; from any thread
+    void closeAfterFlush() {
+        shutdownOutbound(); // the writer closes the socket when it runs dry
+    }
+
+    // close the underlying socket immediately; safe to call more than once
+    abstract void close();
+}
@@ -0,0 +1,496 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Several ChatServer nodes acting as one chat. The member list is static and identical on
+// every node, e.g.
+//   -Dchat.cluster.nodes=localhost:13001,localhost:13002 -Dchat.cluster.node=localhost:13001
+// Each node listens on its own entry and dials every other one. A node only ever sends on
+// links it dialed, one writer thread per link, so everything a node reports arrives at a
+// peer in the order it happened there.
+//
+// Peers learn about each other's users through ENTER/EXIT events (and a full SYNC whenever
+// a link comes up) and keep them as RemoteUser entries in their rooms, so rosters show the
+// whole cluster. CHAT and SYSTEM lines are relayed once to every peer, which fans them out
+// to its own clients; a DIRECT message goes only to its recipient's node. A name is claimed
+// from the first reachable node in a hash order over the member list, which serializes
+// competing claims; a grant the claimant never confirms with its ENTER expires after
+// CLAIM_EXPIRY_MS. A node that goes away takes its users with it.
+final class Cluster {
+    private static final String NODES = System.getProperty("chat.cluster.nodes", "");
+    private static final String SELF = System.getProperty("chat.cluster.node", "");
+    private static final int CLAIM_TIMEOUT_MS = 2000;
+    private static final long CLAIM_EXPIRY_MS = 2 * CLAIM_TIMEOUT_MS;
+    private static final int RECONNECT_MS = 1000;
+    private static final int LINK_QUEUE = 64 * 1024;
+
+    // node -> node frames: type (1) | fields; strings are length (4) | UTF-8
+    private static final byte HELLO = 1;    // node
+    private static final byte SYNC = 2;     // count (4) | count x (name | room)
+    private static final byte ENTER = 3;    // name | room
+    private static final byte EXIT = 4;     // name
+    private static final byte CHAT = 5;     // room | sender | text
+    private static final byte SYSTEM = 6;   // room | text
+    private static final byte CLAIM = 7;    // request id (8) | name
+    private static final byte CLAIMED = 8;  // request id (8) | granted (1)
+    private static final byte DIRECT = 9;   // sender | recipient | text
+
+    private static final List<String> nodes = new ArrayList<>();
+    private static final Map<String, Link> links = new ConcurrentHashMap<>();
+    // every name in use anywhere -> the node its user is connected to
+    private static final ConcurrentHashMap<String, String> claims = new ConcurrentHashMap<>();
+    // names this node granted to a peer that has not entered with them yet -> when (nanoTime)
+    private static final ConcurrentHashMap<String, Long> unconfirmed = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private static final AtomicLong nextRequest = new AtomicLong();
+    // set by stop(): the acceptor, readers and links end and nothing reconnects
+    private static volatile boolean stopped;
+    private static volatile ServerSocket acceptorSocket;
+    private static final Set<Socket> peerSockets = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (String node : NODES.split(",")) {
+            if (!node.trim().isEmpty()) nodes.add(node.trim());
+        }
+    }
+
+    private Cluster() {}
+
+    static boolean enabled() {
+        return nodes.size() > 1 && nodes.contains(SELF);
+    }
+
+    // A user connected to another node, kept in rooms so rosters show it. Its outbound queue is
+    // shut from the start, so the room messages, replays and deltas it is handed are discarded.
+    static final class RemoteUser extends ClientConnection {
+        final String node;
+
+        RemoteUser(String name, String node) {
+            this.name = name;
+            this.node = node;
+            shutdownOutbound();
+        }
+
+        @Override
+        void close() {}
+
+        @Override
+        boolean takesRosterDeltas() {
+            return true; // nothing is sent to it anyway, so never build a snapshot for it
+        }
+    }
+
+    static void start() {
+        if (!enabled()) {
+            if (!NODES.isEmpty()) ServerLog.info("Cluster disabled: chat.cluster.node must be one of " + nodes);
+            return;
+        }
+        InetSocketAddress self = address(SELF);
+        Thread acceptor = new Thread(() -> {
+            try (ServerSocket server = new ServerSocket(self.getPort())) {
+                acceptorSocket = server;
+                ServerLog.info("Cluster node " + SELF + " of " + nodes);
+                while (true) {
+                    Socket peer = server.accept();
+                    Thread reader = new Thread(() -> readPeer(peer), "cluster-in");
+                    reader.setDaemon(true);
+                    reader.start();
+                }
+            } catch (IOException e) {
+                if (!stopped) ServerLog.info("Cluster error: " + e.getMessage());
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (String node : nodes) {
+            if (node.equals(SELF)) continue;
+            Link link = new Link(node);
+            links.put(node, link);
+            link.start();
+        }
+    }
+
+    // Leaves the cluster: peers see the links drop and forget this node's users, as when it
+    // crashes, so nothing is sent here first
+    static void stop() {
+        if (!enabled()) return;
+        stopped = true;
+        closeQuietly(acceptorSocket);
+        for (Link link : links.values()) link.shutdown();
+        for (Socket peer : peerSockets) closeQuietly(peer);
+    }
+
+    private static void closeQuietly(Closeable socket) {
+        if (socket == null) return;
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    // ---- called by ChatServer for its own clients ----
+
+    // Cluster-wide half of the name check; blocks for at most CLAIM_TIMEOUT_MS
+    static boolean claim(String name) {
+        if (!enabled()) return true;
+        String owner = owner(name);
+        if (owner.equals(SELF)) return take(name, SELF);
+        long request = nextRequest.incrementAndGet();
+        CompletableFuture<Boolean> granted = new CompletableFuture<>();
+        pendingClaims.put(request, granted);
+        try {
+            links.get(owner).send(frame(CLAIM, out -> {
+                out.writeLong(request);
+                writeString(out, name);
+            }));
+            if (granted.get(CLAIM_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                claims.put(name, SELF);
+                return true;
+            }
+            return false;
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            // a late grant must not pin the name; the owner also lets it expire if this is lost
+            links.get(owner).reply(frame(EXIT, out -> writeString(out, name)));
+            return false;
+        } finally {
+            pendingClaims.remove(request);
+        }
+    }
+
+    // Claims the name for a node on this, its owner; false if another node holds it. A grant
+    // to a peer that never entered with it (its claim timed out before the answer arrived)
+    // is released once it is CLAIM_EXPIRY_MS old.
+    private static boolean take(String name, String node) {
+        while (true) {
+            String holder = claims.putIfAbsent(name, node);
+            if (holder == null || holder.equals(node)) {
+                if (!node.equals(SELF)) unconfirmed.put(name, System.nanoTime());
+                return true;
+            }
+            Long granted = unconfirmed.get(name);
+            if (granted == null || System.nanoTime() - granted < TimeUnit.MILLISECONDS.toNanos(CLAIM_EXPIRY_MS)) {
+                return false;
+            }
+            if (unconfirmed.remove(name, granted)) claims.remove(name, holder);
+        }
+    }
+
+    // the first node at or after the name's hash that this node can reach
+    private static String owner(String name) {
+        int start = Math.floorMod(name.hashCode(), nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            String node = nodes.get((start + i) % nodes.size());
+            if (node.equals(SELF)) return node;
+            Link link = links.get(node);
+            if (link != null && link.connected) return node;
+        }
+        return SELF;
+    }
+
+    static void entered(String name, String room) {
+        if (!enabled()) return;
+        sendAll(frame(ENTER, out -> {
+            writeString(out, name);
+            writeString(out, room);
+        }));
+    }
+
+    static void exited(String name) {
+        if (!enabled()) return;
+        claims.remove(name, SELF);
+        sendAll(frame(EXIT, out -> writeString(out, name)));
+    }
+
+    static void chat(String room, String sender, String text) {
+        if (!enabled()) return;
+        sendAll(frame(CHAT, out -> {
+            writeString(out, room);
+            writeString(out, sender);
+            writeString(out, text);
+        }));
+    }
+
+    static void system(String room, String text) {
+        if (!enabled()) return;
+        sendAll(frame(SYSTEM, out -> {
+            writeString(out, room);
+            writeString(out, text);
+        }));
+    }
+
+    // a "/msg" to a user of another node goes to that node only; false if no such user is reachable
+    static boolean direct(String sender, String target, String text) {
+        if (!enabled()) return false;
+        RemoteUser user = remoteUsers.get(target);
+        Link link = user != null ? links.get(user.node) : null;
+        if (link == null || !link.connected) return false;
+        link.send(frame(DIRECT, out -> {
+            writeString(out, sender);
+            writeString(out, target);
+            writeString(out, text);
+        }));
+        return true;
+    }
+
+    static RemoteUser remoteUser(String name) {
+        return remoteUsers.get(name);
+    }
+
+    private static void sendAll(byte[] frame) {
+        for (Link link : links.values()) link.send(frame);
+    }
+
+    // ---- frames from peers ----
+
+    private static void readPeer(Socket socket) {
+        String node = null;
+        peerSockets.add(socket);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (in.readByte() != HELLO) return;
+            node = readString(in);
+            if (!links.containsKey(node)) {
+                ServerLog.info("Cluster: ignoring unknown node " + node);
+                return;
+            }
+            ServerLog.info("Cluster: " + node + " is up");
+            while (true) {
+                handle(node, in.readByte(), in);
+            }
+        } catch (IOException e) {
+            // peer went away
+        } finally {
+            closeQuietly(socket);
+            peerSockets.remove(socket);
+            // on stop() the local rooms are empty and going away; their peers' users need no leaving
+            if (!stopped && node != null && links.containsKey(node)) nodeDown(node);
+        }
+    }
+
+    private static void handle(String node, byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case SYNC: {
+                int count = in.readInt();
+                Map<String, String> users = new HashMap<>();
+                for (int i = 0; i < count; i++) users.put(readString(in), readString(in));
+                for (RemoteUser user : new ArrayList<>(remoteUsers.values())) {
+                    if (user.node.equals(node) && !users.containsKey(user.name)) remove(user);
+                }
+                users.forEach((name, room) -> enter(node, name, room));
+                break;
+            }
+            case ENTER: {
+                String name = readString(in);
+                enter(node, name, readString(in));
+                break;
+            }
+            case EXIT: {
+                String name = readString(in);
+                if (claims.remove(name, node)) unconfirmed.remove(name);
+                RemoteUser user = remoteUsers.get(name);
+                if (user != null && user.node.equals(node)) remove(user);
+                break;
+            }
+            case CHAT: {
+                String room = readString(in);
+                String sender = readString(in);
+                ChatServer.relayedChat(room, sender, readString(in));
+                break;
+            }
+            case SYSTEM: {
+                String room = readString(in);
+                ChatServer.relayedSystem(room, readString(in));
+                break;
+            }
+            case DIRECT: {
+                String sender = readString(in);
+                String target = readString(in);
+                ChatServer.relayedDirect(sender, target, readString(in));
+                break;
+            }
+            case CLAIM: {
+                long request = in.readLong();
+                String name = readString(in);
+                boolean granted = take(name, node);
+                // our link to the claimant may still be coming up; the answer must not be lost
+                links.get(node).reply(frame(CLAIMED, out -> {
+                    out.writeLong(request);
+                    out.writeBoolean(granted);
+                }));
+                break;
+            }
+            case CLAIMED: {
+                CompletableFuture<Boolean> pending = pendingClaims.get(in.readLong());
+                boolean granted = in.readBoolean();
+                if (pending != null) pending.complete(granted);
+                break;
+            }
+            default:
+                throw new IOException("Unknown cluster frame " + type);
+        }
+    }
+
+    private static void enter(String node, String name, String room) {
+        unconfirmed.remove(name);
+        String holder = claims.put(name, node);
+        if (SELF.equals(holder)) {
+            // only possible after a partition healed with the name taken on both sides
+            ServerLog.info("Cluster: " + name + " is connected here and on " + node);
+        }
+        RemoteUser user = remoteUsers.computeIfAbsent(name, n -> new RemoteUser(n, node));
+        ChatServer.remoteEnter(user, room);
+    }
+
+    private static void remove(RemoteUser user) {
+        remoteUsers.remove(user.name, user);
+        claims.remove(user.name, user.node);
+        ChatServer.remoteExit(user);
+    }
+
+    private static void nodeDown(String node) {
+        ServerLog.info("Cluster: " + node + " is down");
+        for (RemoteUser user : new ArrayList<>(remoteUsers.values())) {
+            if (user.node.equals(node)) remove(user);
+        }
+        claims.values().removeIf(node::equals);
+        unconfirmed.keySet().removeIf(name -> !claims.containsKey(name));
+    }
+
+    // ---- outbound links ----
+
+    private interface Fields {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] frame(byte type, Fields fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // in-memory stream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > BinaryProtocol.MAX_PAYLOAD) throw new IOException("Bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Connection to one peer, redialed whenever it drops. Frames sent while it is down are
+    // discarded: the SYNC sent on reconnect brings the peer's view of our users up to date.
+    // Replies to a peer's requests are the exception, they wait for the link to come up.
+    private static final class Link extends Thread {
+        private static final byte[] WAKE = new byte[0];
+
+        final String node;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(LINK_QUEUE);
+        private final Queue<byte[]> replies = new ConcurrentLinkedQueue<>();
+        volatile boolean connected;
+        private volatile Socket socket; // the current connection, so shutdown can cut it
+
+        Link(String node) {
+            super("cluster-link-" + node);
+            this.node = node;
+            setDaemon(true);
+        }
+
+        void send(byte[] frame) {
+            if (connected && !queue.offer(frame)) {
+                ServerLog.info("Cluster: link to " + node + " is backed up, dropping it");
+                connected = false;
+                interrupt();
+            }
+        }
+
+        // written ahead of other frames, and before the SYNC if the link is down; never dropped
+        void reply(byte[] frame) {
+            replies.add(frame);
+            if (connected) queue.offer(WAKE);
+        }
+
+        void shutdown() {
+            interrupt();
+            closeQuietly(socket);
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    if (stopped) break;
+                    socket.connect(address(node), RECONNECT_MS);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    // anything queued before the snapshot is covered by it; anything after is replayed on top
+                    queue.clear();
+                    connected = true;
+                    out.write(frame(HELLO, o -> writeString(o, SELF)));
+                    writeReplies(out);
+                    out.write(sync());
+                    out.flush();
+                    while (connected) {
+                        byte[] frame = queue.take();
+                        // replies first: a claim's EXIT must reach the owner before a retried CLAIM
+                        writeReplies(out);
+                        out.write(frame);
+                        // batch whatever else is already waiting into the same write
+                        while ((frame = queue.poll()) != null) out.write(frame);
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // peer down or link reset; retry below
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException ignored) {}
+            }
+        }
+
+        // a reply leaves the queue only once written, so a link that fails first sends it again
+        private void writeReplies(DataOutputStream out) throws IOException {
+            byte[] frame;
+            while ((frame = replies.peek()) != null) {
+                out.write(frame);
+                replies.poll();
+            }
+        }
+
+        private static byte[] sync() {
+            List<ClientConnection> users = new ArrayList<>();
+            for (ClientConnection conn : ChatServer.connections()) {
+                if (conn.room != null) users.add(conn);
+            }
+            return frame(SYNC, out -> {
+                // the count is written first, so a user leaving meanwhile is sent with its last room
+                out.writeInt(users.size());
+                for (ClientConnection user : users) {
+                    Room room = user.room;
+                    writeString(out, user.name);
+                    writeString(out, room != null ? room.name : RoomRegistry.LOBBY);
+                }
+            });
+        }
+    }
+}
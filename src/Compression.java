@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-message compression for binary clients that ask for it with a DEFLATE frame before
+// HELLO. Every DEFLATED frame is raw deflate of one or more whole frames, compressed on its own
+// with no dictionary carried over from earlier ones, so a compressed broadcast can be shared by
+// all its recipients exactly like a plain frame: it is compressed once, not once per client.
+// Frames under MIN_BYTES are sent as they are; a short chat line barely shrinks, and the
+// DEFLATED header would eat what little it gains.
+final class Compression {
+    // -Dchat.compress.min.bytes / -Dchat.compress.level (1 = fastest ... 9 = smallest)
+    static final int MIN_BYTES = Integer.getInteger("chat.compress.min.bytes", 512);
+    static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+    // a client never inflates more than this from one frame
+    static final int MAX_INFLATED = 16 * BinaryProtocol.MAX_PAYLOAD;
+
+    // Deflaters hold native memory and are costly to create, so they are reused by whichever
+    // thread compresses next rather than kept per thread (there may be a virtual thread per client)
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private Compression() {}
+
+    // the frames as one DEFLATED frame, or the frames themselves when that would not be smaller
+    static ByteBuffer deflate(ByteBuffer frames) {
+        return deflate(frames, LEVEL);
+    }
+
+    static ByteBuffer deflate(ByteBuffer frames, int level) {
+        int length = frames.remaining();
+        if (length < MIN_BYTES) return frames;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(level, true);
+        try {
+            deflater.setLevel(level);
+            deflater.setInput(frames.duplicate());
+            deflater.finish();
+            // never bigger than the plain frames: give up as soon as the output would be
+            ByteBuffer out = ByteBuffer.allocate(length);
+            out.position(BinaryProtocol.HEADER_SIZE);
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) return frames;
+                deflater.deflate(out);
+            }
+            int compressed = out.position() - BinaryProtocol.HEADER_SIZE;
+            out.put(0, BinaryProtocol.DEFLATED).putInt(1, compressed).putInt(5, 0);
+            return out.flip().asReadOnlyBuffer();
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    // Several messages for one client (a history replay or page) as one frame, compressed
+    // together so they share one dictionary; much smaller than each compressed on its own
+    static ByteBuffer batch(List<WireMessage> messages) {
+        int length = 0;
+        for (WireMessage msg : messages) length += msg.frame(true).remaining();
+        ByteBuffer frames = ByteBuffer.allocate(length);
+        for (WireMessage msg : messages) frames.put(msg.frame(true).duplicate());
+        return deflate(frames.flip());
+    }
+
+    // Client side: the frames inside DEFLATED payloads, one connection's worth of state
+    static final class Inflating {
+        private final Inflater inflater = new Inflater(true);
+        private byte[] buffer = new byte[16 * 1024];
+
+        // inflates the payload into buffer() and returns how many bytes it holds
+        int inflate(byte[] payload, int length) throws IOException {
+            inflater.reset();
+            inflater.setInput(payload, 0, length);
+            int total = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (total == buffer.length) {
+                        if (buffer.length >= MAX_INFLATED) throw new IOException("Inflated frame too large");
+                        buffer = Arrays.copyOf(buffer, Math.min(MAX_INFLATED, buffer.length * 2));
+                    }
+                    int n = inflater.inflate(buffer, total, buffer.length - total);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated DEFLATED frame");
+                    }
+                    total += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt DEFLATED frame", e);
+            }
+            return total;
+        }
+
+        byte[] buffer() {
+            return buffer;
+        }
+    }
+}
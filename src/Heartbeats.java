@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keepalives for every connection from one thread, without a timer per socket. Connections sit
+// in the slots of a wheel that turns once per INTERVAL_MS and each tick visits one slot, so a
+// connection is checked once per interval and a tick costs (connections / SLOTS) checks.
+// A connection that sent nothing since its last check is pinged; after MISSED unanswered pings
+// it is closed. A half-open socket (peer gone without a FIN or RST) never fails a blocking
+// read, so without this its handler and its room membership would live forever.
+// Only clients known to answer are pinged: binary ones, and text ones that have sent a PONG
+// (the bundled clients send one right after their name). A legacy line client would show the
+// ping as a line and never answer it; those are left to TCP keepalive, which every accepted
+// socket has on, and to a failed write.
+final class Heartbeats {
+    // -Dchat.heartbeat.interval.ms=0 turns heartbeats off
+    static final long INTERVAL_MS = Long.getLong("chat.heartbeat.interval.ms", 30_000);
+    static final int MISSED = Integer.getInteger("chat.heartbeat.missed", 3);
+    private static final int SLOTS = 32;
+
+    private static final WireMessage PING = WireMessage.ping();
+
+    private static final List<Set<ClientConnection>> wheel = new ArrayList<>(SLOTS);
+    // the slot the next tick visits; only the ticker writes it
+    private static volatile int position;
+    private static volatile ScheduledExecutorService ticker;
+
+    static {
+        for (int i = 0; i < SLOTS; i++) wheel.add(ConcurrentHashMap.newKeySet());
+    }
+
+    private Heartbeats() {}
+
+    static boolean enabled() {
+        return INTERVAL_MS > 0;
+    }
+
+    static void start() {
+        if (!enabled()) return;
+        ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "heartbeats");
+            t.setDaemon(true);
+            return t;
+        });
+        long tickMicros = TimeUnit.MILLISECONDS.toMicros(INTERVAL_MS) / SLOTS;
+        ticker.scheduleAtFixedRate(Heartbeats::tick, tickMicros, tickMicros, TimeUnit.MICROSECONDS);
+    }
+
+    static void stop() {
+        ScheduledExecutorService t = ticker;
+        if (t != null) t.shutdownNow();
+    }
+
+    // in the slot the ticker just left, so the first check comes one whole interval later
+    static void register(ClientConnection conn) {
+        if (!enabled()) return;
+        int slot = Math.floorMod(position - 1, SLOTS);
+        conn.heartbeatSlot = slot;
+        wheel.get(slot).add(conn);
+    }
+
+    static void unregister(ClientConnection conn) {
+        int slot = conn.heartbeatSlot;
+        if (slot >= 0) wheel.get(slot).remove(conn);
+    }
+
+    private static void tick() {
+        int slot = position;
+        position = (slot + 1) % SLOTS;
+        for (ClientConnection conn : wheel.get(slot)) {
+            if (conn.takeAlive()) {
+                conn.missedHeartbeats = 0;
+            } else if (!conn.binary && !conn.answersPings) {
+                // cannot be pinged; left to fail on a write
+            } else if (conn.missedHeartbeats >= MISSED) {
+                wheel.get(slot).remove(conn);
+                conn.disconnecting(ServerMetrics.Disconnect.TIMEOUT);
+                conn.close();
+            } else {
+                conn.missedHeartbeats++;
+                conn.send(PING);
+            }
+        }
+    }
+}
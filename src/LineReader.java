@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// '\n'-terminated UTF-8 lines, like BufferedReader.readLine() for "\n" and "\r\n", except that
+// a line longer than maxBytes is refused with TooLongException instead of being buffered
+// whole, so one client cannot grow the server's heap with a line that never ends.
+final class LineReader {
+    static final class TooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLongException(int maxBytes) {
+            super("Line longer than " + maxBytes + " bytes");
+        }
+    }
+
+    private final InputStream in;
+    private final int maxBytes;
+    private final byte[] buffer = new byte[8 * 1024];
+    private int position;
+    private int limit;
+    // the current line when it spans more than one read; grows up to maxBytes
+    private byte[] line = new byte[128];
+
+    LineReader(InputStream in, int maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+    }
+
+    // the next line without its terminator, or null at end of stream
+    String readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (position == limit) {
+                int n = in.read(buffer);
+                if (n < 0) return length == 0 ? null : decode(line, 0, length);
+                position = 0;
+                limit = n;
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n') position++;
+            int count = position - start;
+            if (length + count > maxBytes) throw new TooLongException(maxBytes);
+            if (position < limit) {
+                position++; // past the '\n'
+                if (length == 0) return decode(buffer, start, count);
+                append(start, count, length);
+                return decode(line, 0, length + count);
+            }
+            append(start, count, length);
+            length += count;
+        }
+    }
+
+    private void append(int start, int count, int length) {
+        if (length + count > line.length) line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+        System.arraycopy(buffer, start, line, length, count);
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+}
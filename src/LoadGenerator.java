@@ -0,0 +1,343 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load against a running ChatServer: thousands of simulated text-protocol clients
+// spread over a few selector threads. Every client does the name handshake (and optionally
+// joins a room); then chat lines are sent at a fixed overall rate, each carrying the time it
+// was scheduled to go out, so a stalled server shows up as latency instead of being hidden
+// by a slower send loop. Reports throughput, end-to-end latency and join latency.
+//
+// java -Dload.clients=2000 -Dload.rate=500 -cp bin LoadGenerator
+//   load.host / load.port     server address (localhost / 12345)
+//   load.clients              simulated clients (1000)
+//   load.rooms                rooms the clients are spread over, 1 = everyone in the lobby (1)
+//   load.rate                 chat lines per second over all clients (100)
+//   load.size                 bytes per chat line (64)
+//   load.duration / load.warmup  seconds measured / seconds sent but not measured (30 / 5)
+//   load.threads              selector threads (number of cores, at most 8)
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", ChatServer.PORT);
+    private static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+    private static final int ROOMS = Math.max(1, Integer.getInteger("load.rooms", 1));
+    private static final int RATE = Integer.getInteger("load.rate", 100);
+    private static final int SIZE = Integer.getInteger("load.size", 64);
+    private static final int DURATION_S = Integer.getInteger("load.duration", 30);
+    private static final int WARMUP_S = Integer.getInteger("load.warmup", 5);
+    private static final int THREADS = Integer.getInteger("load.threads",
+            Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private static final int JOIN_STALL_S = 5;
+
+    // chat payload: STAMP + scheduled send time (System.nanoTime) + '@' + padding
+    private static final String STAMP = "t@";
+
+    private static final LatencyHistogram latency = new LatencyHistogram();
+    private static final LatencyHistogram joinLatency = new LatencyHistogram();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder joined = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static final LongAdder backpressured = new LongAdder();
+
+    private static final AtomicBoolean measuring = new AtomicBoolean();
+    private static volatile boolean sending;
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%d clients -> %s:%d in %d room(s), %d msg/s of %d bytes, %d threads%n",
+                CLIENTS, HOST, PORT, ROOMS, RATE, SIZE, THREADS);
+
+        CountDownLatch connected = new CountDownLatch(CLIENTS);
+        List<Worker> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Worker worker = new Worker(t, connected);
+            workers.add(worker);
+        }
+        String prefix = "load" + ProcessHandle.current().pid() + "-";
+        for (int i = 0; i < CLIENTS; i++) {
+            workers.get(i % THREADS).clients.add(new Client(prefix + i, i % ROOMS));
+        }
+        for (Worker worker : workers) worker.start();
+
+        // join: wait until every client is in its room, or nothing moved for JOIN_STALL_S
+        long lastJoined = -1;
+        int stalled = 0;
+        while (!connected.await(1, TimeUnit.SECONDS) && stalled < JOIN_STALL_S) {
+            long n = joined.sum() + failed.sum();
+            stalled = n == lastJoined ? stalled + 1 : 0;
+            lastJoined = n;
+            System.out.printf("  joined %d/%d%n", joined.sum(), CLIENTS);
+        }
+        System.out.printf("joined %d/%d (%d failed), join latency p50 %.2f ms, p99 %.2f ms, p999 %.2f ms%n",
+                joined.sum(), CLIENTS, failed.sum(), ms(joinLatency.percentile(0.50)),
+                ms(joinLatency.percentile(0.99)), ms(joinLatency.percentile(0.999)));
+
+        sending = true;
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_S));
+        latency.reset();
+        long sent0 = sent.sum(), delivered0 = delivered.sum(), bytes0 = bytesIn.sum(), backpressured0 = backpressured.sum();
+        measuring.set(true);
+        long start = System.nanoTime();
+        for (int s = 1; s <= DURATION_S; s++) {
+            Thread.sleep(1000);
+            System.out.printf("  %3ds sent %d, delivered %d, p99 %.2f ms%n", s,
+                    sent.sum() - sent0, delivered.sum() - delivered0, ms(latency.percentile(0.99)));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long sentN = sent.sum() - sent0;
+        long deliveredN = delivered.sum() - delivered0;
+        long bytesN = bytesIn.sum() - bytes0;
+        sending = false;
+        measuring.set(false);
+
+        // in-flight lines still arrive, but are no longer counted
+        Thread.sleep(500);
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            worker.join();
+        }
+
+        System.out.println();
+        System.out.printf("sent      %10d  %10.0f msg/s%n", sentN, sentN / seconds);
+        System.out.printf("delivered %10d  %10.0f msg/s  %8.2f MB/s in%n", deliveredN, deliveredN / seconds,
+                bytesN / seconds / (1 << 20));
+        System.out.printf("latency   p50 %.2f ms  p99 %.2f ms  p999 %.2f ms  max %.2f ms%n",
+                ms(latency.percentile(0.50)), ms(latency.percentile(0.99)),
+                ms(latency.percentile(0.999)), ms(latency.max()));
+        if (backpressured.sum() > backpressured0) {
+            System.out.printf("sends delayed by a full socket buffer: %d%n", backpressured.sum() - backpressured0);
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    // One selector thread: connects its clients, reads everything they receive and sends its
+    // share of the overall rate from whichever of its clients is next
+    private static final class Worker extends Thread {
+        final List<Client> clients = new ArrayList<>();
+        final Selector selector;
+        private final CountDownLatch connected;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final long intervalNanos;
+        private int nextSender;
+
+        Worker(int index, CountDownLatch connected) throws IOException {
+            super("load-" + index);
+            this.selector = Selector.open();
+            this.connected = connected;
+            this.intervalNanos = RATE > 0 ? TimeUnit.SECONDS.toNanos(THREADS) / RATE : Long.MAX_VALUE;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (Client client : clients) {
+                    client.connectStart = System.nanoTime();
+                    SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    client.channel = channel;
+                    if (channel.connect(new InetSocketAddress(HOST, PORT))) {
+                        onConnected(client);
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    }
+                    // keep up with handshakes while the rest connect
+                    if (client.index % 64 == 0) poll(0);
+                }
+
+                long nextSend = 0;
+                while (running) {
+                    long now = System.nanoTime();
+                    if (sending && RATE > 0) {
+                        if (nextSend == 0) nextSend = now;
+                        // catch up on every send that is due; each carries its scheduled time
+                        while (nextSend <= now && running) {
+                            send(nextSend);
+                            nextSend += intervalNanos;
+                        }
+                    }
+                    long waitNanos = sending && RATE > 0 ? nextSend - System.nanoTime() : TimeUnit.MILLISECONDS.toNanos(100);
+                    poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                }
+            } catch (IOException e) {
+                System.out.println(getName() + " failed: " + e.getMessage());
+            } finally {
+                for (Client client : clients) client.close();
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        private void poll(long timeoutMillis) throws IOException {
+            if (timeoutMillis == 0) selector.selectNow(); else selector.select(timeoutMillis);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        if (client.channel.finishConnect()) onConnected(client);
+                    } else {
+                        if (key.isWritable()) client.flush();
+                        if (key.isReadable()) read(client);
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    fail(client);
+                }
+            }
+        }
+
+        private void onConnected(Client client) throws IOException {
+            client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+            client.write(client.name + "\n");
+        }
+
+        private void fail(Client client) {
+            if (client.state == Client.FAILED) return;
+            if (client.state != Client.READY) connected.countDown();
+            client.state = Client.FAILED;
+            failed.increment();
+            client.close();
+        }
+
+        private void ready(Client client) {
+            client.state = Client.READY;
+            joinLatency.record(System.nanoTime() - client.connectStart);
+            joined.increment();
+            connected.countDown();
+        }
+
+        private void send(long scheduledNanos) throws IOException {
+            // round-robin over this worker's ready clients; skip ones whose socket is backed up
+            for (int tries = 0; tries < clients.size(); tries++) {
+                Client client = clients.get(nextSender);
+                nextSender = (nextSender + 1) % clients.size();
+                if (client.state != Client.READY) continue;
+                if (client.pending != null) {
+                    backpressured.increment();
+                    continue;
+                }
+                client.write(chatLine(scheduledNanos));
+                sent.increment();
+                return;
+            }
+        }
+
+        private void read(Client client) throws IOException {
+            int n;
+            while ((n = client.channel.read(readBuffer.clear())) > 0) {
+                bytesIn.add(n);
+                for (int p = 0; p < n; p++) {
+                    byte b = readBuffer.get(p);
+                    if (b != '\n') {
+                        // only the head of a line matters: name, stamp and time fit in it
+                        if (client.lineLength < client.line.length) client.line[client.lineLength++] = b;
+                        continue;
+                    }
+                    onLine(client);
+                    client.lineLength = 0;
+                }
+            }
+            if (n < 0) throw new IOException("closed by server");
+        }
+
+        private void onLine(Client client) throws IOException {
+            String head = new String(client.line, 0, client.lineLength, StandardCharsets.UTF_8);
+            if (head.equals(ChatServer.PING)) {
+                // a client that sends rarely is pinged while idle; a backed-up one answers the next ping
+                if (client.pending == null) client.write(ChatServer.PONG + "\n");
+            } else if (client.state == Client.READY) {
+                int at = head.indexOf(STAMP);
+                int end = at < 0 ? -1 : head.indexOf('@', at + STAMP.length());
+                if (end > 0) {
+                    delivered.increment();
+                    if (measuring.get()) {
+                        latency.record(System.nanoTime() - Long.parseLong(head.substring(at + STAMP.length(), end)));
+                    }
+                }
+            } else if (head.startsWith("[System] Name")) {
+                throw new IOException(head); // rejected name
+            } else if (client.state == Client.CONNECTING) {
+                // anything but a rejection means the name was taken; under load the server may
+                // drop the oldest queued lines (room, roster) so no particular line is waited for
+                if (client.room == 0) {
+                    ready(client);
+                } else {
+                    client.state = Client.JOINING;
+                    client.write("/join load" + client.room + "\n");
+                }
+            } else if (head.startsWith(ChatServer.ROOM_PREFIX + "load")) {
+                ready(client);
+            }
+        }
+    }
+
+    private static String chatLine(long scheduledNanos) {
+        StringBuilder line = new StringBuilder(SIZE + 1).append(STAMP).append(scheduledNanos).append('@');
+        while (line.length() < SIZE) line.append('x');
+        return line.append('\n').toString();
+    }
+
+    private static final class Client {
+        static final int CONNECTING = 0, JOINING = 1, READY = 2, FAILED = 3;
+
+        final String name;
+        final int index;
+        final int room;
+        final byte[] line = new byte[96];
+        int lineLength;
+        int state = CONNECTING;
+        long connectStart;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer pending; // rest of a line the socket could not take yet
+
+        private static int created;
+
+        Client(String name, int room) {
+            this.name = name;
+            this.index = created++;
+            this.room = room;
+        }
+
+        void write(String text) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                pending = buffer;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void flush() throws IOException {
+            if (pending == null) return;
+            channel.write(pending);
+            if (!pending.hasRemaining()) {
+                pending = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            if (channel == null) return;
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Compares server modes on one box: for each mode it starts ChatServer in a child JVM,
+// connects N clients from a single selector thread, then has one client send timed
+// messages and records how long each broadcast takes to reach every recipient.
+//
+// java -cp bin LoadTest [clients] [messages] [modes...]
+// e.g. java -cp bin LoadTest 500 50 thread virtual nio
+public class LoadTest {
+    private static final int PORT = 12399;
+    private static final String PING = "ping@";
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        List<String> modes = args.length > 2
+                ? Arrays.asList(args).subList(2, args.length)
+                : List.of("thread", "virtual");
+
+        List<String> rows = new ArrayList<>();
+        for (String mode : modes) {
+            rows.add(run(mode, clients, messages));
+        }
+
+        System.out.println();
+        System.out.printf("%-8s %10s %10s %8s %10s %10s%n", "mode", "connected", "rss-MB", "threads", "p50-ms", "p99-ms");
+        rows.forEach(System.out::println);
+    }
+
+    private static String run(String mode, int clients, int messages) throws Exception {
+        Process server = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dchat.server.mode=" + mode, "-Dchat.port=" + PORT,
+                // one client sends every message, far above the default per-client rate limit
+                "-Dchat.rate.messages=0", "-Dchat.room.rate.messages=0",
+                // receivers never send; a ping line would also count as a received broadcast
+                "-Dchat.heartbeat.interval.ms=0",
+                "-cp", System.getProperty("java.class.path"), "ChatServer")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            waitForPort();
+            System.out.println("[" + mode + "] connecting " + clients + " clients...");
+
+            Selector selector = Selector.open();
+            List<LoadClient> connected = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                try {
+                    LoadClient c = new LoadClient(SocketChannel.open(new InetSocketAddress("localhost", PORT)));
+                    c.channel.write(ByteBuffer.wrap(("load" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                    c.channel.configureBlocking(false);
+                    c.channel.register(selector, SelectionKey.OP_READ, c);
+                    connected.add(c);
+                } catch (IOException e) {
+                    System.out.println("[" + mode + "] connect failed after " + i + " clients: " + e.getMessage());
+                    break;
+                }
+                if (i % 100 == 0) drain(selector, 0);
+            }
+            // let join notices and rosters settle before measuring
+            while (drain(selector, 500) > 0) { }
+            long rssAfterConnect = procStatus(server.pid(), "VmRSS:");
+            long threads = procStatus(server.pid(), "Threads:");
+
+            long[] latencies = new long[messages * connected.size()];
+            int recorded = 0;
+            LoadClient sender = connected.get(0);
+            for (int m = 0; m < messages; m++) {
+                String msg = PING + System.nanoTime() + "\n";
+                sender.channel.write(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+                long deadline = System.currentTimeMillis() + 5000;
+                int before = recorded;
+                while (recorded - before < connected.size() && System.currentTimeMillis() < deadline) {
+                    selector.select(100);
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        for (long t : ((LoadClient) key.attachment()).read()) {
+                            latencies[recorded++] = t;
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+                Thread.sleep(20);
+            }
+
+            for (LoadClient c : connected) c.channel.close();
+            selector.close();
+
+            long[] sorted = Arrays.copyOf(latencies, recorded);
+            Arrays.sort(sorted);
+            return String.format("%-8s %10d %10.1f %8d %10.2f %10.2f", mode, connected.size(),
+                    rssAfterConnect / 1024.0, threads, percentile(sorted, 0.50), percentile(sorted, 0.99));
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket probe = new Socket("localhost", PORT)) {
+                probe.getOutputStream().write("\n".getBytes()); // empty name is rejected without side effects
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + PORT);
+    }
+
+    // read whatever is available; returns the number of bytes consumed
+    private static long drain(Selector selector, long timeoutMs) throws IOException {
+        long total = 0;
+        int ready = timeoutMs > 0 ? selector.select(timeoutMs) : selector.selectNow();
+        if (ready == 0) return 0;
+        for (SelectionKey key : selector.selectedKeys()) {
+            LoadClient c = (LoadClient) key.attachment();
+            long before = c.bytesRead;
+            c.read();
+            total += c.bytesRead - before;
+        }
+        selector.selectedKeys().clear();
+        return total;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return Double.NaN;
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))] / 1_000_000.0;
+    }
+
+    // value in kB (or count) from /proc/<pid>/status, -1 where /proc is not available
+    private static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {}
+        return -1;
+    }
+
+    private static class LoadClient {
+        final SocketChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        final StringBuilder line = new StringBuilder();
+        long bytesRead;
+
+        LoadClient(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // consume available input; returns latencies (ns) of any ping lines completed by it
+        List<Long> read() throws IOException {
+            List<Long> latencies = new ArrayList<>();
+            int n;
+            while ((n = channel.read(buffer)) > 0) {
+                bytesRead += n;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    char ch = (char) buffer.get();
+                    if (ch != '\n') {
+                        if (line.length() < 64) line.append(ch); // only the head of a line matters
+                        continue;
+                    }
+                    int at = line.indexOf(PING);
+                    if (at >= 0) {
+                        latencies.add(System.nanoTime() - Long.parseLong(line.substring(at + PING.length()).trim()));
+                    }
+                    line.setLength(0);
+                }
+                buffer.clear();
+            }
+            return latencies;
+        }
+    }
+}
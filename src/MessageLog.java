@@ -0,0 +1,333 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only log of every room message, stored in fixed-size memory-mapped segment files.
+// Each message gets a sequential offset; a segment "<base offset>.log" holds records
+//   payload length (4) | crc32 of timestamp and payload (4) | timestamp (8) | payload
+// and its "<base offset>.idx" maps (offset - base) to the record's position, so reads by
+// offset go straight to the record without loading anything else into the heap.
+// Appends are a copy into the mapping; on restart the last segment is rescanned and cut at
+// the first incomplete or corrupt record.
+class MessageLog implements Closeable {
+    static final byte CHAT = 1;
+    static final byte SYSTEM = 2;
+
+    private static final int RECORD_HEADER = 4 + 4 + 8;
+    private static final int INDEX_ENTRY = 4;
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+    private static final int SCAN_LIMIT = 100_000;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    static final class Entry {
+        final long offset;
+        final long timestamp;
+        final byte type;
+        final String room;
+        final String sender; // empty for system messages
+        final String text;
+
+        Entry(long offset, long timestamp, byte type, String room, String sender, String text) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.room = room;
+            this.sender = sender;
+            this.text = text;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final CRC32 crc = new CRC32(); // guarded by this
+    private Segment active; // guarded by this
+    private boolean closed; // guarded by this; appends after close() are refused
+    // offset the next append gets; everything below it is readable
+    private volatile long nextOffset;
+
+    // retentionBytes / retentionMillis of 0 keep everything
+    MessageLog(Path dir, int segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = Math.max(MIN_SEGMENT_BYTES, segmentBytes);
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(dir);
+
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(LOG_SUFFIX))
+                    .forEach(n -> {
+                        if (n.matches("\\d{20}\\" + LOG_SUFFIX)) {
+                            bases.add(Long.parseLong(n.substring(0, n.length() - LOG_SUFFIX.length())));
+                        } else {
+                            ServerLog.info("Message log: ignoring " + n + ", not a segment");
+                        }
+                    });
+        }
+        bases.sort(null);
+        for (long base : bases) {
+            segments.put(base, Segment.open(dir, base, this.segmentBytes));
+        }
+
+        if (segments.isEmpty()) {
+            active = Segment.open(dir, 0, this.segmentBytes);
+            segments.put(0L, active);
+        } else {
+            Map.Entry<Long, Segment> previous = null;
+            for (Map.Entry<Long, Segment> e : segments.entrySet()) {
+                if (previous != null) previous.getValue().count = (int) (e.getKey() - previous.getKey());
+                previous = e;
+            }
+            active = segments.lastEntry().getValue();
+            recover(active);
+        }
+        nextOffset = active.baseOffset + active.count;
+        enforceRetention();
+    }
+
+    // Rebuild the active segment's index from its records, stopping at the first bad one
+    private void recover(Segment segment) {
+        int position = 0;
+        int count = 0;
+        while (position + RECORD_HEADER <= segmentBytes && count < segment.maxEntries) {
+            int length = segment.data.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER + length > segmentBytes) break;
+            if (checksum(segment, position, length) != segment.data.getInt(position + 4)) break;
+            segment.index.putInt(count * INDEX_ENTRY, position);
+            count++;
+            position += RECORD_HEADER + length;
+        }
+        if (position < segmentBytes && segment.data.getInt(position) != 0) {
+            ServerLog.info("Message log: dropped a partial record at " + (segment.baseOffset + count));
+        }
+        // zero the tail so stale bytes can never look like a record after later appends
+        for (int i = position; i < segmentBytes; i++) segment.data.put(i, (byte) 0);
+        segment.position = position;
+        segment.count = count;
+    }
+
+    private int checksum(Segment segment, int position, int length) {
+        crc.reset();
+        crc.update(segment.data.slice(position + 8, 8 + length));
+        return (int) crc.getValue();
+    }
+
+    // Returns the message's offset, or -1 if it is too large for a segment or the log is closed
+    synchronized long append(byte type, String room, String sender, String text, long timestamp) throws IOException {
+        if (closed) return -1;
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + roomBytes.length + 2 + senderBytes.length + textBytes.length;
+        if (RECORD_HEADER + length > segmentBytes) return -1;
+
+        if (active.position + RECORD_HEADER + length > segmentBytes || active.count == active.maxEntries) {
+            roll();
+        }
+
+        Segment segment = active;
+        int position = segment.position;
+        MappedByteBuffer data = segment.data;
+        int p = position + RECORD_HEADER;
+        data.put(p++, type);
+        data.putShort(p, (short) roomBytes.length).put(p + 2, roomBytes);
+        p += 2 + roomBytes.length;
+        data.putShort(p, (short) senderBytes.length).put(p + 2, senderBytes);
+        p += 2 + senderBytes.length;
+        data.put(p, textBytes);
+        data.putLong(position + 8, timestamp);
+        data.putInt(position + 4, checksum(segment, position, length));
+        data.putInt(position, length); // written last: a crash before this leaves no record
+
+        segment.index.putInt(segment.count * INDEX_ENTRY, position);
+        segment.position = position + RECORD_HEADER + length;
+        segment.count++;
+        return nextOffset++;
+    }
+
+    private void roll() throws IOException {
+        active.data.force();
+        active.index.force();
+        long base = active.baseOffset + active.count;
+        active = Segment.open(dir, base, segmentBytes);
+        segments.put(base, active);
+        enforceRetention();
+    }
+
+    // Drop whole segments, oldest first, beyond the size or age limit; never the active one.
+    // Runs on every roll and on open; call it now and then as well, or a quiet log that never
+    // rolls keeps its old segments past the age limit.
+    synchronized void enforceRetention() {
+        if (closed) return;
+        long cutoff = retentionMillis > 0 ? System.currentTimeMillis() - retentionMillis : Long.MIN_VALUE;
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            long totalBytes = (long) segments.size() * oldest.fileBytes();
+            boolean tooBig = retentionBytes > 0 && totalBytes > retentionBytes;
+            boolean tooOld = oldest.count > 0 && oldest.timestampAt(oldest.count - 1) < cutoff;
+            if (!tooBig && !tooOld) break;
+            segments.remove(oldest.baseOffset);
+            oldest.delete();
+        }
+    }
+
+    long startOffset() {
+        return segments.firstKey();
+    }
+
+    long nextOffset() {
+        return nextOffset;
+    }
+
+    // Up to max entries starting at offset (clamped to what is retained)
+    List<Entry> read(long offset, int max) {
+        List<Entry> entries = new ArrayList<>();
+        long end = nextOffset;
+        offset = Math.max(offset, startOffset());
+        while (offset < end && entries.size() < max) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(offset);
+            if (e == null) break;
+            Segment segment = e.getValue();
+            int i = (int) (offset - segment.baseOffset);
+            if (i >= segment.count) break;
+            entries.add(segment.read(offset, i));
+            offset++;
+        }
+        return entries;
+    }
+
+    // Up to max entries of one room from before the given offset, oldest first. Rooms share
+    // the log, so this scans backwards and gives up after SCAN_LIMIT entries. It runs on the
+    // input thread (in NIO mode a reactor), so records are matched on their raw room bytes in
+    // the mapping and only the matches are decoded.
+    List<Entry> readBack(long before, int max, String room) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        List<Entry> entries = new ArrayList<>();
+        long offset = Math.min(before, nextOffset) - 1;
+        long limit = Math.max(startOffset(), offset + 1 - SCAN_LIMIT);
+        while (offset >= limit && entries.size() < max) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(offset);
+            if (e == null) break;
+            Segment segment = e.getValue();
+            int first = (int) Math.max(0, limit - segment.baseOffset);
+            for (int i = (int) (offset - segment.baseOffset); i >= first && entries.size() < max; i--) {
+                if (segment.inRoom(i, roomBytes)) entries.add(segment.read(segment.baseOffset + i, i));
+            }
+            offset = segment.baseOffset - 1;
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        active.data.force();
+        active.index.force();
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final Path logFile;
+        final Path indexFile;
+        final MappedByteBuffer data;
+        final MappedByteBuffer index;
+        final int maxEntries;
+        // written under the log's lock; count is published to readers through nextOffset
+        int position;
+        int count;
+
+        private Segment(long baseOffset, Path logFile, Path indexFile, MappedByteBuffer data, MappedByteBuffer index) {
+            this.baseOffset = baseOffset;
+            this.logFile = logFile;
+            this.indexFile = indexFile;
+            this.data = data;
+            this.index = index;
+            this.maxEntries = index.capacity() / INDEX_ENTRY;
+        }
+
+        static Segment open(Path dir, long baseOffset, int segmentBytes) throws IOException {
+            String name = String.format("%020d", baseOffset);
+            Path logFile = dir.resolve(name + LOG_SUFFIX);
+            Path indexFile = dir.resolve(name + INDEX_SUFFIX);
+            // one index entry per 32 bytes of log covers any record with a short payload
+            return new Segment(baseOffset, logFile, indexFile,
+                    map(logFile, segmentBytes), map(indexFile, segmentBytes / 32 * INDEX_ENTRY));
+        }
+
+        private static MappedByteBuffer map(Path file, int size) throws IOException {
+            // the mapping stays valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        long fileBytes() {
+            return (long) data.capacity() + index.capacity();
+        }
+
+        long timestampAt(int i) {
+            return data.getLong(index.getInt(i * INDEX_ENTRY) + 8);
+        }
+
+        // whether record i belongs to the room, without decoding anything
+        boolean inRoom(int i, byte[] room) {
+            int p = index.getInt(i * INDEX_ENTRY) + RECORD_HEADER + 1;
+            if ((data.getShort(p) & 0xffff) != room.length) return false;
+            p += 2;
+            for (int j = 0; j < room.length; j++) {
+                if (data.get(p + j) != room[j]) return false;
+            }
+            return true;
+        }
+
+        // absolute gets only, so any number of readers can share the mapping
+        Entry read(long offset, int i) {
+            int position = index.getInt(i * INDEX_ENTRY);
+            int length = data.getInt(position);
+            long timestamp = data.getLong(position + 8);
+            int p = position + RECORD_HEADER;
+            int end = p + length;
+            byte type = data.get(p++);
+            int roomLength = data.getShort(p) & 0xffff;
+            String room = string(p + 2, roomLength);
+            p += 2 + roomLength;
+            int senderLength = data.getShort(p) & 0xffff;
+            String sender = string(p + 2, senderLength);
+            p += 2 + senderLength;
+            return new Entry(offset, timestamp, type, room, sender, string(p, end - p));
+        }
+
+        private String string(int position, int length) {
+            byte[] bytes = new byte[length];
+            data.get(position, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(logFile);
+                Files.deleteIfExists(indexFile);
+            } catch (IOException e) {
+                ServerLog.info("Message log: could not delete " + logFile + ": " + e.getMessage());
+            }
+        }
+    }
+}
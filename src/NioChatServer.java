@@ -0,0 +1,705 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+// Non-blocking server mode: one acceptor thread hands sockets round-robin to a fixed
+// pool of reactor threads, each owning a Selector. An idle client costs a channel,
+// a selection key and a small NioConnection instead of a thread and its stack.
+// With TLS (see Tls) each connection adds an SSLEngine; records are read and wrapped in buffers
+// owned by the reactor, so an idle TLS connection holds no buffers of its own either.
+class NioChatServer {
+    private static final int REACTORS = Integer.getInteger("chat.nio.reactors",
+            Runtime.getRuntime().availableProcessors());
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    // wire protocol negotiation states of a connection
+    private static final int NEW = 0, AWAIT_VERSION = 1, TEXT = 2, BINARY = 3;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // cluster name claims, which block for up to a couple of seconds; a connect storm queues
+    // here rather than starting a thread per connection
+    private static final int JOIN_THREADS = 16;
+    private static final ExecutorService JOINERS = Executors.newFixedThreadPool(JOIN_THREADS, task -> {
+        Thread t = new Thread(task, "nio-join");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static volatile Reactor[] running;
+
+    static void start(int port) {
+        Reactor[] reactors = new Reactor[REACTORS];
+        running = reactors;
+        try {
+            for (int i = 0; i < reactors.length; i++) {
+                reactors[i] = new Reactor();
+                Thread t = new Thread(reactors[i], "nio-reactor-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            ChatServer.listenFailed(e);
+            return;
+        }
+
+        new Thread(() -> {
+            try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                serverChannel.bind(new InetSocketAddress(port), 1024);
+                ChatServer.listening(serverChannel, "nio, " + reactors.length + " reactors"
+                        + (Tls.serverEnabled() ? ", TLS" : ""));
+                int next = 0;
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    ServerMetrics.connectionsOpened.increment();
+                    reactors[next].register(channel);
+                    next = (next + 1) % reactors.length;
+                }
+            } catch (IOException e) {
+                ChatServer.listenFailed(e);
+            }
+        }, "nio-acceptor").start();
+    }
+
+    // after ChatServer.stop closed the listener and the clients; each reactor runs what is
+    // queued for it (those closes) and ends
+    static void stop() {
+        Reactor[] reactors = running;
+        if (reactors == null) return;
+        for (Reactor reactor : reactors) {
+            if (reactor != null) reactor.stop();
+        }
+        JOINERS.shutdown();
+    }
+
+    private static class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // shared by every connection on this reactor; only partial lines are copied out
+        private final ByteBuffer readBuffer;
+        private final BinaryProtocol.Frame frame = new BinaryProtocol.Frame();
+        // shared frames are coalesced here with absolute puts (a heap buffer would be copied to a
+        // temporary direct buffer by the channel anyway), so nothing is allocated per recipient
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(ClientConnection.FLUSH_BYTES);
+        // connections waiting out their flush window, in deadline order since the window is fixed
+        private final Queue<NioConnection> delayedFlushes = new ArrayDeque<>();
+        // TLS only: records as read off the socket (after a connection's leftover partial record)
+        // and as wrapped for it, sized for one read and for one whole write buffer of frames
+        private final ByteBuffer tlsIn;
+        private final ByteBuffer tlsOut;
+        private final int packetSize;
+        private volatile boolean stopped;
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+            if (Tls.serverEnabled()) {
+                SSLSession session = Tls.serverEngine().getSession();
+                packetSize = session.getPacketBufferSize();
+                readBuffer = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, session.getApplicationBufferSize()));
+                tlsIn = ByteBuffer.allocate(2 * packetSize);
+                // a record carries at most 16 KB of frames
+                tlsOut = ByteBuffer.allocateDirect((ClientConnection.FLUSH_BYTES / (16 * 1024) + 2) * packetSize);
+            } else {
+                packetSize = 0;
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                tlsIn = null;
+                tlsOut = null;
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().setKeepAlive(true); // see ClientHandler.run
+                    NioConnection conn = new NioConnection(this, channel, Tls.serverEnabled() ? Tls.serverEngine() : null);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    Heartbeats.register(conn);
+                } catch (IOException | RuntimeException e) {
+                    try { channel.close(); } catch (IOException ignored) {}
+                    ServerMetrics.disconnected(ServerMetrics.Disconnect.ERROR);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        // a task on behalf of one connection: if it throws, only that connection is closed
+        void execute(NioConnection conn, Runnable task) {
+            execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    conn.failed(e);
+                }
+            });
+        }
+
+        void scheduleFlush(NioConnection conn) {
+            if (ClientConnection.FLUSH_WINDOW_MS == 0) {
+                execute(conn, () -> conn.flush(writeBuffer));
+                return;
+            }
+            long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ClientConnection.FLUSH_WINDOW_MS);
+            execute(() -> {
+                conn.flushDue = due;
+                delayedFlushes.add(conn);
+            });
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    NioConnection next = delayedFlushes.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long waitMs = TimeUnit.NANOSECONDS.toMillis(next.flushDue - System.nanoTime() + 999_999);
+                        if (waitMs > 0) selector.select(waitMs); else selector.selectNow();
+                    }
+                    // A bug or an SSLEngine failure in one connection must not end this thread,
+                    // which would strand every other connection on the reactor
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            ServerLog.info("Reactor task failed: " + e);
+                        }
+                    }
+                    long now = System.nanoTime();
+                    while ((next = delayedFlushes.peek()) != null && next.flushDue - now <= 0) {
+                        delayedFlushes.poll();
+                        try {
+                            next.flush(writeBuffer);
+                        } catch (RuntimeException e) {
+                            next.failed(e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (!key.isValid()) continue;
+                            if (key.isReadable()) conn.onReadable(readBuffer);
+                            if (key.isValid() && key.isWritable()) conn.flush(writeBuffer);
+                        } catch (RuntimeException e) { // CancelledKeyException included
+                            conn.failed(e);
+                        }
+                    }
+                } catch (IOException e) {
+                    ServerLog.info("Reactor error: " + e.getMessage());
+                }
+            }
+            // closes queued before stop() that the last pass missed, then whatever is left
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.info("Reactor task failed: " + e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                try { key.channel().close(); } catch (IOException ignored) {}
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private static class NioConnection extends ClientConnection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // null without TLS
+        private final SSLEngine engine;
+        // the start of a TLS record whose rest has not arrived yet
+        private ByteBuffer tlsPartial;
+
+        // frame only partly copied into the write buffer, and bytes copied but not taken by the socket
+        private ByteBuffer current;
+        private int currentOffset;
+        private ByteBuffer unsent;
+        private long flushDue;
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // stop handling input once the handshake fails or the client sent /exit
+        private boolean reading = true;
+        // input is on hold while a cluster name claim runs off the reactor; what already
+        // arrived waits in partial
+        private boolean joining;
+        private int protocol = NEW;
+
+        // bytes of a line that has not seen its '\n' yet; allocated only when needed
+        private byte[] partial;
+        private int partialLength;
+
+        NioConnection(Reactor reactor, SocketChannel channel, SSLEngine engine) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.engine = engine;
+        }
+
+        // reactor thread only
+        void onReadable(ByteBuffer buffer) {
+            if (engine != null) {
+                readTls(buffer);
+                return;
+            }
+            int n;
+            try {
+                buffer.clear();
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                disconnecting(ServerMetrics.Disconnect.ERROR);
+                n = -1;
+            }
+            if (n < 0) {
+                disconnecting(ServerMetrics.Disconnect.EOF);
+                close();
+                return;
+            }
+            ServerMetrics.bytesIn.add(n);
+            markAlive();
+            received(buffer.array(), 0, buffer.position());
+        }
+
+        // TLS: every whole record read is unwrapped into the buffer and handled like plain input;
+        // the handshake runs here too, answering the client from inside the loop
+        private void readTls(ByteBuffer buffer) {
+            ByteBuffer in = reactor.tlsIn;
+            in.clear();
+            if (tlsPartial != null) {
+                in.put(tlsPartial);
+                tlsPartial = null;
+            }
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                disconnecting(ServerMetrics.Disconnect.ERROR);
+                n = -1;
+            }
+            if (n < 0) {
+                disconnecting(ServerMetrics.Disconnect.EOF);
+                close();
+                return;
+            }
+            ServerMetrics.bytesIn.add(n);
+            markAlive();
+
+            boolean wasHandshaking = handshaking();
+            in.flip();
+            try {
+                while (in.hasRemaining() && (reading || joining)) {
+                    buffer.clear();
+                    SSLEngineResult result = engine.unwrap(in, buffer);
+                    runHandshakeTasks();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        disconnecting(ServerMetrics.Disconnect.EOF);
+                        close();
+                        return;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break; // rest of the record still on its way
+                    if (result.getStatus() != SSLEngineResult.Status.OK) throw new SSLException("Unwrap " + result.getStatus());
+                    if (buffer.position() > 0) received(buffer.array(), 0, buffer.position());
+                    if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) flush(reactor.writeBuffer);
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) break;
+                }
+            } catch (SSLException e) {
+                disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                reading = false;
+                close();
+                return;
+            }
+            if (in.hasRemaining()) {
+                tlsPartial = ByteBuffer.allocate(in.remaining()).put(in).flip();
+            }
+            // frames queued during the handshake (a heartbeat ping) could not go out until now
+            if (wasHandshaking && !handshaking() && hasOutbound()) scheduleWrite();
+        }
+
+        private boolean handshaking() {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+        }
+
+        // Key exchange and certificate work run right here on the reactor. A full handshake stalls
+        // the reactor's other connections for about a millisecond; a resumed one is much cheaper.
+        private void runHandshakeTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        // the protocol on top of the socket or of TLS: negotiation, then lines or frames
+        private void received(byte[] bytes, int start, int end) {
+            // a binary client opens with MAGIC, VERSION; anything else is a legacy client's name line
+            if (protocol == NEW && start < end) {
+                protocol = bytes[start] == BinaryProtocol.MAGIC ? AWAIT_VERSION : TEXT;
+                if (protocol == AWAIT_VERSION) start++;
+            }
+            if (protocol == AWAIT_VERSION && start < end) {
+                if (bytes[start++] != BinaryProtocol.VERSION) {
+                    disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                    reading = false;
+                    close();
+                    return;
+                }
+                binary = true;
+                send(BinaryProtocol.handshake());
+                protocol = BINARY;
+            }
+
+            if (protocol == TEXT) {
+                readLines(bytes, start, end);
+            } else if (protocol == BINARY) {
+                try {
+                    readFrames(bytes, start, end);
+                } catch (IOException e) {
+                    disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                    reading = false;
+                    close();
+                }
+            }
+        }
+
+        private void readLines(byte[] bytes, int start, int end) {
+            int lineStart = start;
+            for (int i = start; i < end && reading; i++) {
+                if (bytes[i] != '\n') continue;
+                if (partialLength + i - lineStart > MAX_LINE) {
+                    lineTooLong();
+                    return;
+                }
+                handleLine(takeLine(bytes, lineStart, i));
+                lineStart = i + 1;
+            }
+            if (reading && partialLength + end - lineStart > MAX_LINE) {
+                lineTooLong();
+            } else if ((reading || joining) && lineStart < end) {
+                appendPartial(bytes, lineStart, end - lineStart);
+            }
+        }
+
+        // frames are parsed straight out of the read buffer; only an incomplete tail is copied
+        private void readFrames(byte[] bytes, int start, int end) throws IOException {
+            BinaryProtocol.Frame frame = reactor.frame;
+            if (partialLength > 0) {
+                appendPartial(bytes, start, end - start);
+                bytes = partial;
+                start = 0;
+                end = partialLength;
+            }
+            int offset = start;
+            while (reading) {
+                int n;
+                try {
+                    // refused on its header, so no more than MAX_LINE of a frame is ever buffered
+                    n = BinaryProtocol.parse(bytes, offset, end, frame, MAX_LINE);
+                } catch (LineReader.TooLongException e) {
+                    lineTooLong();
+                    return;
+                }
+                if (n == 0) break;
+                offset += n;
+                handleFrame(frame);
+            }
+            if (bytes == partial) {
+                partialLength = end - offset;
+                if (partialLength == 0) {
+                    partial = null;
+                } else {
+                    System.arraycopy(partial, offset, partial, 0, partialLength);
+                }
+            } else if ((reading || joining) && offset < end) {
+                appendPartial(bytes, offset, end - offset);
+            }
+        }
+
+        private void handleFrame(BinaryProtocol.Frame frame) {
+            if (name == null && frame.type != BinaryProtocol.HELLO) {
+                if (!ChatServer.beforeHello(this, frame)) {
+                    disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                    reading = false;
+                    close();
+                }
+                return;
+            }
+            // HELLO carries the name, LINE everything after it
+            boolean expected = name == null ? frame.type == BinaryProtocol.HELLO : frame.type == BinaryProtocol.LINE;
+            if (!expected) return;
+            handleLine(frame.text(0));
+        }
+
+        private void lineTooLong() {
+            refuse(ServerMetrics.Disconnect.LINE_TOO_LONG, "Line longer than " + MAX_LINE + " bytes. Disconnecting.");
+            reading = false;
+            closeAfterFlush();
+        }
+
+        private String takeLine(byte[] bytes, int from, int to) {
+            String line;
+            if (partialLength == 0) {
+                line = new String(bytes, from, to - from, StandardCharsets.UTF_8);
+            } else {
+                appendPartial(bytes, from, to - from);
+                line = new String(partial, 0, partialLength, StandardCharsets.UTF_8);
+                partial = null;
+                partialLength = 0;
+            }
+            // same line terminators as BufferedReader.readLine() for "\r\n"
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+
+        private void appendPartial(byte[] bytes, int from, int length) {
+            if (partial == null) {
+                partial = new byte[Math.max(128, length)];
+            } else if (partialLength + length > partial.length) {
+                partial = java.util.Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+            }
+            System.arraycopy(bytes, from, partial, partialLength, length);
+            partialLength += length;
+        }
+
+        private void handleLine(String line) {
+            if (name == null && Cluster.enabled()) {
+                joinAsync(line);
+            } else if (name == null) {
+                if (!ChatServer.join(this, line)) {
+                    reading = false;
+                    closeAfterFlush();
+                }
+            } else if (!ChatServer.onMessage(this, line)) {
+                // /exit, or a flood: let the goodbye notice out first
+                reading = false;
+                closeAfterFlush();
+            }
+        }
+
+        // A cluster name claim may wait on another node, which must not stall the reactor: stop
+        // reading, claim on a JOINERS thread, then carry on with whatever arrived meanwhile.
+        private void joinAsync(String line) {
+            reading = false;
+            joining = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            JOINERS.execute(() -> {
+                boolean joined = ChatServer.join(this, line);
+                reactor.execute(this, () -> joined(joined));
+            });
+        }
+
+        // reactor thread only
+        private void joined(boolean joined) {
+            joining = false;
+            if (!joined) {
+                closeAfterFlush();
+                return;
+            }
+            if (closed.get()) {
+                // closed while joining; its leave() ran before there was a name to leave with
+                ChatServer.leave(this);
+                return;
+            }
+            reading = true;
+            byte[] pending = partial;
+            int pendingLength = partialLength;
+            partial = null;
+            partialLength = 0;
+            if (pendingLength > 0) {
+                if (protocol == TEXT) {
+                    readLines(pending, 0, pendingLength);
+                } else {
+                    try {
+                        readFrames(pending, 0, pendingLength);
+                    } catch (IOException e) {
+                        disconnecting(ServerMetrics.Disconnect.PROTOCOL);
+                        reading = false;
+                        close();
+                    }
+                }
+            }
+            if (reading && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        @Override
+        void outboundReady() {
+            scheduleWrite();
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                reactor.scheduleFlush(this);
+            }
+        }
+
+        // reactor thread only: write everything queued, one coalesced write per buffer-full
+        void flush(ByteBuffer buffer) {
+            if (closed.get()) return;
+            try {
+                if (engine == null) {
+                    while (fill(buffer)) {
+                        if (!write(buffer)) return;
+                    }
+                } else if (!flushTls(buffer)) {
+                    return;
+                }
+            } catch (IOException e) {
+                disconnecting(ServerMetrics.Disconnect.ERROR);
+                close();
+                return;
+            }
+
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            writeScheduled.set(false);
+            if (engine != null && handshaking()) {
+                // queued frames wait for the client's side of the handshake; readTls flushes then
+            } else if (hasOutbound()) {
+                scheduleWrite(); // raced with a send() that saw writeScheduled still set
+            } else if (isOutboundShutdown()) {
+                close();
+            }
+        }
+
+        // false if the socket took only part of the buffer: the rest is kept and OP_WRITE awaited
+        private boolean write(ByteBuffer buffer) throws IOException {
+            ServerMetrics.bytesOut.add(channel.write(buffer));
+            socketWrites.increment();
+            if (!buffer.hasRemaining()) return true;
+            if (unsent == null || unsent.capacity() < buffer.remaining()) {
+                unsent = ByteBuffer.allocate(buffer.capacity());
+            }
+            unsent.clear();
+            unsent.put(buffer).flip();
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return false;
+        }
+
+        // TLS: handshake messages while the engine has some, then queued frames wrapped into
+        // records; the ciphertext is what a full socket leaves in unsent
+        private boolean flushTls(ByteBuffer plain) throws IOException {
+            if (unsent != null && unsent.hasRemaining()) {
+                ServerMetrics.bytesOut.add(channel.write(unsent));
+                socketWrites.increment();
+                if (unsent.hasRemaining()) return false; // OP_WRITE is still on
+            }
+            ByteBuffer out = reactor.tlsOut;
+            while (true) {
+                out.clear();
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP && out.remaining() >= reactor.packetSize) {
+                        wrap(EMPTY, out);
+                    }
+                } else if (handshaking() || !fill(plain)) {
+                    return true;
+                } else {
+                    while (plain.hasRemaining()) wrap(plain, out);
+                }
+                out.flip();
+                if (!write(out)) return false;
+            }
+        }
+
+        private void wrap(ByteBuffer plain, ByteBuffer out) throws SSLException {
+            SSLEngineResult result = engine.wrap(plain, out);
+            runHandshakeTasks();
+            if (result.getStatus() != SSLEngineResult.Status.OK) throw new SSLException("Wrap " + result.getStatus());
+        }
+
+        // copy unsent bytes, then queued frames, into the buffer; false if there is nothing to write
+        private boolean fill(ByteBuffer buffer) {
+            buffer.clear();
+            if (unsent != null && unsent.hasRemaining()) {
+                buffer.put(unsent);
+            }
+            while (buffer.hasRemaining()) {
+                if (current == null) {
+                    current = pollOutbound();
+                    currentOffset = 0;
+                    if (current == null) break;
+                }
+                int length = Math.min(buffer.remaining(), current.limit() - currentOffset);
+                buffer.put(buffer.position(), current, currentOffset, length);
+                buffer.position(buffer.position() + length);
+                currentOffset += length;
+                if (currentOffset == current.limit()) {
+                    current = null;
+                    framesWritten.increment();
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        void closeAfterFlush() {
+            shutdownOutbound();
+            if (!hasOutbound() && !writeScheduled.get()) close();
+        }
+
+        // reactor thread: something this connection's handling threw; it is closed, the rest go on
+        void failed(RuntimeException e) {
+            ServerLog.info("Closing " + (name != null ? name : "a new connection") + " after an error: " + e);
+            disconnecting(ServerMetrics.Disconnect.ERROR);
+            close();
+        }
+
+        // best effort, so the client sees the server end the stream rather than a cut connection
+        private void closeNotify() {
+            engine.closeOutbound();
+            ByteBuffer out = reactor.tlsOut;
+            out.clear();
+            try {
+                engine.wrap(EMPTY, out);
+                channel.write(out.flip());
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            shutdownOutbound();
+            // leave() runs on the reactor too: close() may be called from inside another
+            // client's send(), which must not re-enter room locks
+            reactor.execute(() -> {
+                if (key != null) key.cancel();
+                if (engine != null) closeNotify();
+                try { channel.close(); } catch (IOException ignored) {}
+                Heartbeats.unregister(this);
+                ChatServer.leave(this);
+                recordDisconnect();
+                if (droppedCount() > 0) {
+                    ServerLog.info(name + " missed " + droppedCount() + " messages (outbound queue full)");
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+// A named channel. Chat fan-out only iterates this room's members and holds just the short
+// history lock; joins and leaves lock the room itself, so they never contend with other rooms.
+class Room {
+    // -Dchat.history.size: recent messages kept per room and replayed to everyone who enters it
+    static final int HISTORY_SIZE = Integer.getInteger("chat.history.size", 50);
+    // -Dchat.room.rate.messages / -Dchat.room.rate.burst: chat lines per second the room fans
+    // out, whoever sends them (0 = unlimited)
+    static final int RATE = Integer.getInteger("chat.room.rate.messages", 1000);
+    static final int RATE_BURST = Integer.getInteger("chat.room.rate.burst", 2000);
+
+    final String name;
+    // tells this room apart from an earlier room of the same name (or one before a restart),
+    // whose message sequence numbers mean nothing here
+    final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final Set<ClientConnection> members = ConcurrentHashMap.newKeySet();
+    // recording a message and queueing it to members happen under this lock, so a client
+    // entering the room gets each message exactly once: in the replay or live
+    private final Ring recent = new Ring(HISTORY_SIZE);
+    private final TokenBucket chatRate = TokenBucket.perSecond(RATE, RATE_BURST);
+    // the whole ring as one compressed frame, for clients that take compression; guarded by
+    // recent and rebuilt only once the ring has moved on
+    private ByteBuffer deflatedReplay;
+    private long deflatedReplayNext = -1;
+    // guarded by this
+    private long rosterVersion;
+    private boolean closed;
+
+    Room(String name) {
+        this.name = name;
+    }
+
+    // logAppend writes the message to the MessageLog and returns its offset, or -1 if it was not
+    // logged. It runs under the history lock, so log offsets come in the same order as sequence
+    // numbers and history can switch from the ring to the log at any message.
+    void broadcast(WireMessage msg, LongSupplier logAppend) {
+        synchronized (recent) {
+            msg.sequence(epoch, recent.next());
+            recent.add(msg, logAppend.getAsLong());
+            for (ClientConnection member : members) {
+                member.send(msg);
+            }
+        }
+    }
+
+    // false if the room is over its chat rate and the line should be dropped
+    boolean admitChat() {
+        return chatRate == null || chatRate.tryTake();
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // False if the room was closed by its last member leaving; the caller retries with a new room.
+    // A client resuming in this room only gets the messages after the last one it saw, as long
+    // as those are still in the ring.
+    synchronized boolean add(ClientConnection conn) {
+        if (closed) return false;
+        rosterVersion++;
+        conn.send(WireMessage.room(name));
+        synchronized (recent) {
+            members.add(conn);
+            long from = recent.oldest();
+            if (conn.resumeEpoch == epoch && conn.resumeSeq < recent.next()) {
+                from = Math.max(from, conn.resumeSeq + 1);
+            }
+            if (conn.deflate && recent.next() - from > 1) {
+                conn.send(deflatedReplay(from));
+            } else {
+                for (long seq = from; seq < recent.next(); seq++) {
+                    conn.send(recent.get(seq));
+                }
+            }
+            conn.historyCursor = from;
+            conn.historyLogCursor = recent.logOffset(from);
+        }
+        sendUserList(conn);
+        sendRosterDelta(WireMessage.userJoined(rosterVersion, conn), conn);
+        return true;
+    }
+
+    // true if this was the last member and the room is now closed
+    synchronized boolean remove(ClientConnection conn, boolean keepOpen) {
+        if (!members.remove(conn)) return false;
+        rosterVersion++;
+        sendRosterDelta(WireMessage.userLeft(rosterVersion, conn), conn);
+        if (members.isEmpty() && !keepOpen) {
+            closed = true;
+            return true;
+        }
+        return false;
+    }
+
+    // full roster for one client, ordered with respect to the deltas it receives
+    synchronized void sendUserList(ClientConnection conn) {
+        conn.send(WireMessage.userList(rosterVersion, members));
+    }
+
+    // The next page of up to n messages older than what this client has seen, oldest first.
+    // Pages come from the ring while they can; after that from the log, if there is one.
+    List<WireMessage> history(ClientConnection conn, int n, MessageLog log) {
+        List<WireMessage> page = new ArrayList<>();
+        synchronized (recent) {
+            long before = conn.historyCursor;
+            long from = Math.max(recent.oldest(), before - n);
+            for (long seq = from; seq < before; seq++) {
+                page.add(recent.get(seq));
+            }
+            if (from < before) {
+                conn.historyCursor = from;
+                conn.historyLogCursor = recent.logOffset(from);
+            }
+        }
+        if (page.size() == n || log == null || conn.historyLogCursor <= log.startOffset()) return page;
+
+        List<MessageLog.Entry> older = log.readBack(conn.historyLogCursor, n - page.size(), name);
+        List<WireMessage> fromLog = new ArrayList<>(older.size() + page.size());
+        for (MessageLog.Entry entry : older) {
+            fromLog.add(entry.type == MessageLog.CHAT
+                    ? WireMessage.chat(0, entry.sender, entry.text)
+                    : WireMessage.system(entry.text));
+        }
+        conn.historyLogCursor = older.isEmpty() ? log.startOffset() : older.get(0).offset;
+        fromLog.addAll(page);
+        return fromLog;
+    }
+
+    // Caller holds recent. Every fresh entry replays the same whole ring, so that batch is
+    // compressed once per ring state; a resume replays its own gap.
+    private ByteBuffer deflatedReplay(long from) {
+        boolean whole = from == recent.oldest();
+        if (whole && deflatedReplayNext == recent.next()) return deflatedReplay;
+        List<WireMessage> messages = new ArrayList<>((int) (recent.next() - from));
+        for (long seq = from; seq < recent.next(); seq++) {
+            messages.add(recent.get(seq));
+        }
+        ByteBuffer batch = Compression.batch(messages);
+        if (whole) {
+            deflatedReplay = batch;
+            deflatedReplayNext = recent.next();
+        }
+        return batch;
+    }
+
+    // one join/leave for every member except the client it is about
+    private void sendRosterDelta(WireMessage delta, ClientConnection subject) {
+        WireMessage snapshot = null; // for legacy line clients, built once if any are here
+        for (ClientConnection member : members) {
+            if (member == subject) continue;
+            if (member.takesRosterDeltas()) {
+                member.send(delta);
+            } else {
+                if (snapshot == null) snapshot = WireMessage.userList(rosterVersion, members);
+                member.send(snapshot);
+            }
+        }
+    }
+
+    // The last messages of a room, preallocated once; recording one is two array stores
+    private static final class Ring {
+        private final WireMessage[] messages;
+        private final long[] logOffsets;
+        private long next; // sequence number of the next message in this room
+
+        Ring(int capacity) {
+            messages = new WireMessage[Math.max(1, capacity)];
+            logOffsets = new long[messages.length];
+        }
+
+        void add(WireMessage msg, long logOffset) {
+            int slot = (int) (next++ % messages.length);
+            messages[slot] = msg;
+            logOffsets[slot] = logOffset;
+        }
+
+        long next() {
+            return next;
+        }
+
+        long oldest() {
+            return Math.max(0, next - messages.length);
+        }
+
+        WireMessage get(long seq) {
+            return messages[(int) (seq % messages.length)];
+        }
+
+        // log offset of the message at seq (-1 if it was not logged); past the newest message,
+        // Long.MAX_VALUE, i.e. everything the log holds is older
+        long logOffset(long seq) {
+            return seq < next ? logOffsets[(int) (seq % messages.length)] : Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Rooms by name. ConcurrentHashMap locks per bin, so creating or dropping one room never
+// blocks lookups or membership changes in another; the lobby always exists, other rooms
+// are created on first join and dropped when their last member leaves.
+class RoomRegistry {
+    static final String LOBBY = "lobby";
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    RoomRegistry() {
+        rooms.put(LOBBY, new Room(LOBBY));
+    }
+
+    Room join(ClientConnection conn, String roomName) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(roomName, Room::new);
+            if (room.add(conn)) {
+                conn.room = room;
+                return room;
+            }
+            // lost a race with the room's last member leaving; it is gone, so create it again
+            rooms.remove(roomName, room);
+        }
+    }
+
+    // the room if it currently exists, without creating it
+    Room get(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    // returns the room the client was in, or null
+    Room leave(ClientConnection conn) {
+        Room room = conn.room;
+        if (room == null) return null;
+        conn.room = null;
+        if (room.remove(conn, room.name.equals(LOBBY))) {
+            rooms.remove(room.name, room);
+        }
+        return room;
+    }
+
+    List<Room> list() {
+        return new ArrayList<>(rooms.values());
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server console output off the hot path: callers only enqueue, one daemon thread prints.
+// When the console cannot keep up, lines are dropped and counted instead of blocking
+// whoever logged them. Per-message lines are sampled (see sampleBroadcast).
+final class ServerLog {
+    // -Dchat.broadcast.log.every=N: print about one in N broadcasts, 0 = none
+    private static final int BROADCAST_EVERY = Integer.getInteger("chat.broadcast.log.every", 1000);
+    private static final int CAPACITY = 4096;
+
+    static final LongAdder droppedLines = new LongAdder();
+    // lines queued and lines printed so far, for flush
+    private static final LongAdder queuedLines = new LongAdder();
+    private static volatile long printedLines;
+
+    private static final BlockingQueue<String> lines = new ArrayBlockingQueue<>(CAPACITY);
+
+    static {
+        Thread printer = new Thread(ServerLog::printLoop, "server-log");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    private ServerLog() {}
+
+    static void info(String line) {
+        if (lines.offer(line)) {
+            queuedLines.increment();
+        } else {
+            droppedLines.increment();
+        }
+    }
+
+    // Waits, at most timeoutMillis, until every line logged before the call is printed. For the
+    // end of a shutdown: the printer is a daemon and dies with the JVM, taking queued lines along.
+    static void flush(long timeoutMillis) {
+        long target = queuedLines.sum();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (printedLines < target && System.nanoTime() - deadline < 0) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.flush();
+    }
+
+    // true for the broadcasts that should be logged; callers only build the line when it is
+    static boolean sampleBroadcast() {
+        return BROADCAST_EVERY > 0
+                && (BROADCAST_EVERY == 1 || ThreadLocalRandom.current().nextInt(BROADCAST_EVERY) == 0);
+    }
+
+    private static void printLoop() {
+        long reportedDrops = 0;
+        while (true) {
+            String line;
+            try {
+                line = lines.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long drops = droppedLines.sum();
+            if (drops != reportedDrops) {
+                System.out.println("(" + (drops - reportedDrops) + " log lines dropped)");
+                reportedDrops = drops;
+            }
+            System.out.println(line);
+            printedLines++; // only this thread writes it
+        }
+    }
+}
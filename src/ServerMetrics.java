@@ -0,0 +1,153 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters, shared by every server mode. LongAdder stripes under contention, so
+// the hot paths (every read, every fan-out) never fight over one cache line; gauges such as
+// queue depths are only computed when someone asks for them.
+//
+// -Dchat.stats.port=<port> serves them as plain text on http://127.0.0.1:<port>/stats
+final class ServerMetrics {
+    static final int STATS_PORT = Integer.getInteger("chat.stats.port", 0);
+    private static volatile HttpServer http;
+
+    // why a connection ended; the first cause recorded on a connection wins
+    enum Disconnect {
+        EXIT,          // sent /exit
+        EOF,           // closed its end of the socket
+        ERROR,         // read or write failed
+        REJECTED,      // empty or duplicate name
+        PROTOCOL,      // unsupported protocol version or malformed frame
+        SLOW_CONSUMER, // outbound queue full under chat.outbound.overflow=disconnect
+        RATE_LIMITED,  // kept sending over its rate limit
+        LINE_TOO_LONG, // sent a line over chat.max.line bytes
+        TIMEOUT,       // did not answer chat.heartbeat.missed pings
+        SHUTDOWN       // the server stopped (see ChatServer.stop)
+    }
+
+    static final LongAdder connectionsOpened = new LongAdder();
+    static final LongAdder connectionsClosed = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder broadcasts = new LongAdder();
+    static final LongAdder directMessages = new LongAdder();
+    // lines dropped by the connection or room rate limits
+    static final LongAdder throttledMessages = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    // time to queue one broadcast to every member of its room
+    static final LatencyHistogram fanOutNanos = new LatencyHistogram();
+
+    private static final LongAdder[] disconnects = new LongAdder[Disconnect.values().length];
+
+    static {
+        for (int i = 0; i < disconnects.length; i++) disconnects[i] = new LongAdder();
+    }
+
+    private ServerMetrics() {}
+
+    static void disconnected(Disconnect reason) {
+        connectionsClosed.increment();
+        disconnects[reason.ordinal()].increment();
+    }
+
+    // counts what the blocking reader takes off the socket
+    static InputStream countingInput(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) bytesIn.add(n);
+                return n;
+            }
+        };
+    }
+
+    static void startHttp() {
+        if (STATS_PORT <= 0) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), STATS_PORT), 0);
+            http.createContext("/stats", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            // the JDK default runs handlers on the dispatcher thread, which is fine for one page
+            http.start();
+            ServerMetrics.http = http;
+            ServerLog.info("Stats on http://127.0.0.1:" + STATS_PORT + "/stats");
+        } catch (IOException e) {
+            ServerLog.info("Stats endpoint disabled: " + e.getMessage());
+        }
+    }
+
+    // its dispatcher is not a daemon thread, so an embedded server that stopped would keep the JVM up
+    static void stopHttp() {
+        HttpServer server = http;
+        if (server != null) server.stop(0);
+    }
+
+    // one "name value" per line, Prometheus text style
+    static String render() {
+        StringBuilder sb = new StringBuilder(2048);
+        long opened = connectionsOpened.sum();
+        long closed = connectionsClosed.sum();
+        line(sb, "chat_connections_open", opened - closed);
+        line(sb, "chat_connections_opened_total", opened);
+        for (Disconnect reason : Disconnect.values()) {
+            line(sb, "chat_disconnects_total{reason=\"" + reason.name().toLowerCase() + "\"}",
+                    disconnects[reason.ordinal()].sum());
+        }
+        line(sb, "chat_clients", ChatServer.clientCount());
+        line(sb, "chat_rooms", ChatServer.roomCount());
+
+        line(sb, "chat_messages_in_total", messagesIn.sum());
+        line(sb, "chat_broadcasts_total", broadcasts.sum());
+        line(sb, "chat_direct_messages_total", directMessages.sum());
+        line(sb, "chat_throttled_messages_total", throttledMessages.sum());
+        line(sb, "chat_frames_written_total", ClientConnection.framesWritten.sum());
+        line(sb, "chat_socket_writes_total", ClientConnection.socketWrites.sum());
+        line(sb, "chat_bytes_in_total", bytesIn.sum());
+        line(sb, "chat_bytes_out_total", bytesOut.sum());
+        line(sb, "chat_dropped_messages_total", ClientConnection.droppedMessages.sum());
+
+        long queued = 0;
+        int deepest = 0;
+        for (ClientConnection conn : ChatServer.connections()) {
+            int depth = conn.outboundSize();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        line(sb, "chat_outbound_queued", queued);
+        line(sb, "chat_outbound_queue_max", deepest);
+        line(sb, "chat_outbound_queue_capacity", ClientConnection.OUTBOUND_CAPACITY);
+
+        for (double q : new double[] { 0.5, 0.99, 0.999 }) {
+            line(sb, "chat_fanout_micros{quantile=\"" + q + "\"}",
+                    TimeUnit.NANOSECONDS.toMicros(fanOutNanos.percentile(q)));
+        }
+        line(sb, "chat_fanout_micros_max", TimeUnit.NANOSECONDS.toMicros(fanOutNanos.max()));
+        line(sb, "chat_log_lines_dropped_total", ServerLog.droppedLines.sum());
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+
+// Optional TLS for client connections, in every server mode and in the bundled clients.
+//   server: -Dchat.tls.keystore=<PKCS12 file> -Dchat.tls.keystore.password=<password>
+//   client: -Dchat.tls=true, plus -Dchat.tls.truststore=<file> -Dchat.tls.truststore.password=<password>
+//           to trust a self-signed server certificate instead of the JDK's default CAs
+// The protocol negotiation and everything after it run unchanged inside the TLS stream.
+//
+// A full handshake costs the server a certificate signature and a key exchange; a resumed one
+// (TLS 1.3 session ticket, or a cached TLS 1.2 session) skips the signature. The client keeps one
+// SSLContext for the life of the process, so its session cache survives the connection and a
+// reconnect to the same host and port resumes. Sessions stay resumable for SESSION_TIMEOUT_S.
+final class Tls {
+    // -Dchat.tls.session.timeout.s: how long a session can be resumed (0 = no limit)
+    static final int SESSION_TIMEOUT_S = Integer.getInteger("chat.tls.session.timeout.s", 24 * 60 * 60);
+
+    private static final SSLContext serverContext = serverContext();
+    private static final SSLContext clientContext = clientContext();
+
+    private Tls() {}
+
+    static boolean serverEnabled() {
+        return serverContext != null;
+    }
+
+    // a plain listening socket, or a TLS one when the server has a keystore; the handshake runs
+    // on each connection's first read, on its own handler thread rather than the accept loop
+    static ServerSocket serverSocket(int port) throws IOException {
+        if (serverContext == null) return new ServerSocket(port);
+        return serverContext.getServerSocketFactory().createServerSocket(port);
+    }
+
+    // server side of one NIO connection
+    static SSLEngine serverEngine() {
+        SSLEngine engine = serverContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    // Connects, with TLS when this client has it on; the handshake completes before this returns
+    // so a bad certificate shows up as a failed connect
+    static Socket connect(String host, int port) throws IOException {
+        if (clientContext == null) return new Socket(host, port);
+        // host and port key the session cache, which is what makes a reconnect resume
+        SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket(host, port);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS"); // the certificate must name the host
+        socket.setSSLParameters(parameters);
+        try {
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private static SSLContext serverContext() {
+        String keystore = System.getProperty("chat.tls.keystore");
+        if (keystore == null) return null;
+        try {
+            char[] password = System.getProperty("chat.tls.keystore.password", "").toCharArray();
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keystore, password), password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+            ServerLog.info("TLS on, certificate from " + keystore);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            // refusing to start beats silently serving plaintext to clients that asked for TLS
+            throw new IllegalStateException("Cannot load TLS keystore " + keystore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static SSLContext clientContext() {
+        String truststore = System.getProperty("chat.tls.truststore");
+        if (truststore == null && !Boolean.getBoolean("chat.tls")) return null;
+        try {
+            TrustManager[] trust = null; // the JDK's default CAs
+            if (truststore != null) {
+                char[] password = System.getProperty("chat.tls.truststore.password", "").toCharArray();
+                TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                factory.init(load(truststore, password));
+                trust = factory.getTrustManagers();
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust, null);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot load TLS truststore " + truststore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(String file, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, password);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,31 @@
+// Token bucket for rate limits: holds up to `burst` tokens and regains `perSecond` of them
+// every second. Refilled lazily from System.nanoTime() on each take, so there is no timer
+// thread and no allocation; a take is one clock read and a little arithmetic.
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long last;
+
+    TokenBucket(double perSecond, int burst) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.last = System.nanoTime();
+    }
+
+    // a bucket, or null when the rate is 0 (unlimited)
+    static TokenBucket perSecond(double perSecond, int burst) {
+        return perSecond > 0 ? new TokenBucket(perSecond, burst) : null;
+    }
+
+    // false if the bucket is empty; uncontended for a connection's own bucket, short for a room's
+    synchronized boolean tryTake() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+        last = now;
+        if (tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+}
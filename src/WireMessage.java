@@ -0,0 +1,206 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// One outbound message. Each wire protocol's frame is encoded at most once, on first use,
+// and then shared by every recipient speaking that protocol.
+abstract class WireMessage {
+    private volatile ByteBuffer textFrame;
+    private volatile ByteBuffer legacyFrame;
+    private volatile ByteBuffer binaryFrame;
+    private volatile ByteBuffer deflatedFrame;
+    // position in a room's message sequence (see sequence), seq -1 for anything else
+    private long epoch;
+    private long seq = -1;
+
+    // the legacy protocol line, without the trailing newline
+    abstract String textLine();
+
+    abstract ByteBuffer encodeBinary();
+
+    // the line for a line client that never sent ChatServer.CAPS, or null if it gets nothing
+    String legacyLine() {
+        return textLine();
+    }
+
+    // Set by Room when the message is recorded, before anyone encodes it. Binary clients then
+    // get a SEQ frame right after the message, which is what they resume from after a reconnect;
+    // the line protocol has no room for it.
+    final void sequence(long epoch, long seq) {
+        this.epoch = epoch;
+        this.seq = seq;
+    }
+
+    // the binary frame as sent to clients that take compression; compressed at most once
+    final ByteBuffer deflatedFrame() {
+        ByteBuffer frame = deflatedFrame;
+        if (frame == null) deflatedFrame = frame = Compression.deflate(frame(true));
+        return frame;
+    }
+
+    final ByteBuffer frame(boolean binary) {
+        if (binary) {
+            ByteBuffer frame = binaryFrame;
+            if (frame == null) {
+                frame = encodeBinary();
+                if (seq >= 0) frame = BinaryProtocol.sequenced(frame, epoch, seq);
+                binaryFrame = frame;
+            }
+            return frame;
+        }
+        ByteBuffer frame = textFrame;
+        if (frame == null) textFrame = frame = ClientConnection.frame(textLine());
+        return frame;
+    }
+
+    // as frame(false), for a line client that never sent ChatServer.CAPS; null if it gets nothing
+    final ByteBuffer legacyFrame() {
+        ByteBuffer frame = legacyFrame;
+        if (frame == null) {
+            String line = legacyLine();
+            if (line == null) return null;
+            legacyFrame = frame = ClientConnection.frame(line);
+        }
+        return frame;
+    }
+
+    static WireMessage chat(int senderId, String sender, String text) {
+        return new WireMessage() {
+            String textLine() {
+                return "**" + sender + "**: " + text;
+            }
+
+            ByteBuffer encodeBinary() {
+                byte[] name = sender.getBytes(StandardCharsets.UTF_8);
+                byte[] body = text.getBytes(StandardCharsets.UTF_8);
+                return BinaryProtocol.allocate(BinaryProtocol.CHAT, senderId, 2 + name.length + body.length)
+                        .putShort((short) name.length).put(name).put(body).flip().asReadOnlyBuffer();
+            }
+        };
+    }
+
+    static WireMessage system(String text) {
+        return new WireMessage() {
+            String textLine() {
+                return "[System] " + text;
+            }
+
+            ByteBuffer encodeBinary() {
+                return BinaryProtocol.frame(BinaryProtocol.SYSTEM, 0, text);
+            }
+        };
+    }
+
+    static WireMessage bye(String reason) {
+        return new WireMessage() {
+            String textLine() {
+                return ChatServer.BYE_PREFIX + reason;
+            }
+
+            String legacyLine() {
+                return null;
+            }
+
+            ByteBuffer encodeBinary() {
+                return BinaryProtocol.frame(BinaryProtocol.BYE, 0, reason);
+            }
+        };
+    }
+
+    static WireMessage ping() {
+        return new WireMessage() {
+            String textLine() {
+                return ChatServer.PING;
+            }
+
+            ByteBuffer encodeBinary() {
+                return BinaryProtocol.frame(BinaryProtocol.PING, 0, "");
+            }
+        };
+    }
+
+    static WireMessage room(String name) {
+        return new WireMessage() {
+            String textLine() {
+                return ChatServer.ROOM_PREFIX + name;
+            }
+
+            String legacyLine() {
+                return null;
+            }
+
+            ByteBuffer encodeBinary() {
+                return BinaryProtocol.frame(BinaryProtocol.ROOM, 0, name);
+            }
+        };
+    }
+
+    // snapshot of the given members; copied now, since the set keeps changing
+    static WireMessage userList(long version, Collection<ClientConnection> members) {
+        List<ClientConnection> snapshot = new ArrayList<>(members);
+        return new WireMessage() {
+            String textLine() {
+                return ChatServer.USER_LIST_PREFIX + version + ":" + names();
+            }
+
+            String legacyLine() {
+                return ChatServer.USER_LIST_PREFIX + names();
+            }
+
+            private String names() {
+                StringBuilder userList = new StringBuilder();
+                for (ClientConnection member : snapshot) {
+                    if (userList.length() > 0) userList.append(',');
+                    userList.append(member.name);
+                }
+                return userList.toString();
+            }
+
+            ByteBuffer encodeBinary() {
+                List<byte[]> names = new ArrayList<>(snapshot.size());
+                int length = 8 + 4;
+                for (ClientConnection member : snapshot) {
+                    byte[] name = member.name.getBytes(StandardCharsets.UTF_8);
+                    names.add(name);
+                    length += 4 + 2 + name.length;
+                }
+                ByteBuffer frame = BinaryProtocol.allocate(BinaryProtocol.USER_LIST, 0, length)
+                        .putLong(version).putInt(snapshot.size());
+                for (int i = 0; i < snapshot.size(); i++) {
+                    frame.putInt(snapshot.get(i).id).putShort((short) names.get(i).length).put(names.get(i));
+                }
+                return frame.flip().asReadOnlyBuffer();
+            }
+        };
+    }
+
+    static WireMessage userJoined(long version, ClientConnection user) {
+        return userDelta(ChatServer.USER_JOINED_PREFIX, BinaryProtocol.USER_JOINED, version, user);
+    }
+
+    static WireMessage userLeft(long version, ClientConnection user) {
+        return userDelta(ChatServer.USER_LEFT_PREFIX, BinaryProtocol.USER_LEFT, version, user);
+    }
+
+    private static WireMessage userDelta(String prefix, byte type, long version, ClientConnection user) {
+        String name = user.name;
+        int id = user.id;
+        return new WireMessage() {
+            String textLine() {
+                return prefix + version + ":" + name;
+            }
+
+            String legacyLine() {
+                return null; // Room sends those clients a whole snapshot instead
+            }
+
+            ByteBuffer encodeBinary() {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                return BinaryProtocol.allocate(type, id, 8 + bytes.length)
+                        .putLong(version).put(bytes).flip().asReadOnlyBuffer();
+            }
+        };
+    }
+}
@@ -0,0 +1,184 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Recovery, retention and reads of the segment log. Crashes are simulated by writing into a
+// closed log's segment file the way a half-finished append would have left it.
+class MessageLogTest {
+    private static final int SEGMENT_BYTES = 64 * 1024; // the smallest segment MessageLog allows
+    private static final int RECORD_HEADER = 16;
+    private static final String FIRST_SEGMENT = "00000000000000000000.log";
+
+    @TempDir
+    Path dir;
+
+    private MessageLog open() throws IOException {
+        return new MessageLog(dir, SEGMENT_BYTES, 0, 0);
+    }
+
+    private static long append(MessageLog log, String room, String text) throws IOException {
+        return log.append(MessageLog.CHAT, room, "alice", text, System.currentTimeMillis());
+    }
+
+    // bytes one record of append(log, room, text) takes in its segment
+    private static int recordBytes(String room, String text) {
+        return RECORD_HEADER + 1 + 2 + room.length() + 2 + "alice".length() + text.length();
+    }
+
+    private static void write(Path file, int position, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static byte[] intBytes(int value) {
+        return ByteBuffer.allocate(4).putInt(value).array();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    void reopenContinuesAtNextOffset() throws IOException {
+        MessageLog log = open();
+        for (int i = 0; i < 10; i++) assertEquals(i, append(log, "lobby", "m" + i));
+        log.close();
+
+        MessageLog reopened = open();
+        assertEquals(10, reopened.nextOffset());
+        List<MessageLog.Entry> entries = reopened.read(0, 100);
+        assertEquals(10, entries.size());
+        assertEquals("m9", entries.get(9).text);
+        assertEquals(10, append(reopened, "lobby", "m10"));
+        reopened.close();
+    }
+
+    @Test
+    void tornLengthPrefixIsDropped() throws IOException {
+        MessageLog log = open();
+        for (int i = 0; i < 3; i++) append(log, "lobby", "m" + i);
+        log.close();
+        // a length that runs past the end of the segment, as a torn write of the prefix leaves it
+        write(dir.resolve(FIRST_SEGMENT), 3 * recordBytes("lobby", "m0"), intBytes(0x7fff0000));
+
+        MessageLog reopened = open();
+        assertEquals(3, reopened.nextOffset());
+        assertEquals(3, append(reopened, "lobby", "m3"));
+        reopened.close();
+
+        MessageLog again = open();
+        assertEquals(4, again.nextOffset());
+        assertEquals("m3", again.read(3, 1).get(0).text);
+        again.close();
+    }
+
+    @Test
+    void recordWithBadChecksumEndsTheLog() throws IOException {
+        MessageLog log = open();
+        for (int i = 0; i < 5; i++) append(log, "lobby", "m" + i);
+        log.close();
+        // flip the last byte of the last record's text
+        int lastByte = 5 * recordBytes("lobby", "m0") - 1;
+        write(dir.resolve(FIRST_SEGMENT), lastByte, new byte[] { 'x' });
+
+        MessageLog reopened = open();
+        assertEquals(4, reopened.nextOffset());
+        assertEquals("m3", reopened.read(3, 1).get(0).text);
+        reopened.close();
+    }
+
+    @Test
+    void zeroFilledTailIsNotARecord() throws IOException {
+        // a segment file created but never written to, as after a crash right after a roll
+        Files.write(dir.resolve(FIRST_SEGMENT), new byte[SEGMENT_BYTES]);
+        MessageLog empty = open();
+        assertEquals(0, empty.nextOffset());
+        for (int i = 0; i < 2; i++) append(empty, "lobby", "m" + i);
+        empty.close();
+        // an append that got its payload into the mapping but not its length, which goes last
+        int tail = 2 * recordBytes("lobby", "m0");
+        write(dir.resolve(FIRST_SEGMENT), tail + 4, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+
+        MessageLog reopened = open();
+        assertEquals(2, reopened.nextOffset());
+        // the stale bytes were zeroed, so a shorter record written over them reads back whole
+        append(reopened, "lobby", "x");
+        reopened.close();
+        MessageLog again = open();
+        assertEquals(3, again.nextOffset());
+        assertEquals("x", again.read(2, 1).get(0).text);
+        again.close();
+    }
+
+    @Test
+    void retentionBySizeDropsOldestSegments() throws IOException {
+        // a segment file plus its index is 64 KB + 8 KB; keep at most three of them
+        MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 3 * (SEGMENT_BYTES + SEGMENT_BYTES / 8), 0);
+        String text = "x".repeat(10_000);
+        for (int i = 0; i < 60; i++) append(log, "lobby", text);
+        assertTrue(segmentFiles() <= 3, "segments kept: " + segmentFiles());
+        assertTrue(log.startOffset() > 0);
+        assertEquals(60, log.nextOffset());
+        assertEquals(60 - log.startOffset(), log.read(0, 100).size());
+        log.close();
+    }
+
+    @Test
+    void retentionByAgeDropsExpiredSegments() throws IOException {
+        long now = System.currentTimeMillis();
+        long old = now - TimeUnit.HOURS.toMillis(2);
+        MessageLog log = new MessageLog(dir, SEGMENT_BYTES, 0, TimeUnit.HOURS.toMillis(1));
+        String text = "x".repeat(10_000);
+        for (int i = 0; i < 10; i++) log.append(MessageLog.CHAT, "lobby", "alice", text, old);
+        long firstFresh = log.nextOffset();
+        // rolling into new segments drops the ones whose newest message is past the age limit
+        for (int i = 0; i < 10; i++) log.append(MessageLog.CHAT, "lobby", "alice", text, now);
+        assertTrue(log.startOffset() > 0);
+        assertTrue(log.startOffset() <= firstFresh);
+        for (MessageLog.Entry entry : log.read(firstFresh, 100)) assertEquals(now, entry.timestamp);
+        log.close();
+
+        // the age limit also applies on open, to a log that has been idle since
+        MessageLog idle = new MessageLog(dir, SEGMENT_BYTES, 0, 1);
+        assertEquals(1, segmentFiles()); // never the active one
+        assertEquals(idle.nextOffset() - idle.startOffset(), idle.read(0, 100).size());
+        idle.close();
+    }
+
+    @Test
+    void readBackSpansSegments() throws IOException {
+        MessageLog log = open();
+        String padding = "x".repeat(3_000);
+        for (int i = 0; i < 100; i++) {
+            append(log, i % 2 == 0 ? "a" : "b", i + " " + padding);
+        }
+        assertTrue(segmentFiles() > 3); // about 20 records fit in a segment
+
+        List<MessageLog.Entry> all = log.readBack(Long.MAX_VALUE, 1000, "a");
+        assertEquals(50, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(2 * i, all.get(i).offset);
+            assertEquals("a", all.get(i).room);
+            assertTrue(all.get(i).text.startsWith(2 * i + " "));
+        }
+
+        // the five "b" messages just before offset 60, oldest first
+        List<MessageLog.Entry> page = log.readBack(60, 5, "b");
+        assertEquals(List.of(51L, 53L, 55L, 57L, 59L), page.stream().map(e -> e.offset).toList());
+        assertTrue(log.readBack(Long.MAX_VALUE, 10, "c").isEmpty());
+        log.close();
+    }
+}